@@ -0,0 +1,237 @@
+import java.io.BufferedOutputStream; // 出力ファイルへのバッファ付き書き込み
+import java.io.BufferedReader; // ファイルから入力を読み込むためのクラス
+import java.io.IOException; // 入出力処理における例外を扱うためのクラス
+import java.io.OutputStream; // 操作コマンド列の書き出し先
+import java.io.PrintWriter; // CSVを書き出すためのクラス
+import java.nio.charset.StandardCharsets; // 文字コードの指定
+import java.nio.file.Files; // ファイル操作のユーティリティ
+import java.nio.file.Path; // ファイルパス
+import java.nio.file.Paths; // 文字列からPathを作るためのユーティリティ
+import java.nio.file.StandardCopyOption; // 出力ファイルを置き換えるときのオプション
+import java.util.ArrayList; // 可変長リストの実装
+import java.util.Arrays; // 配列のユーティリティ
+import java.util.List; // リストインターフェース
+import java.util.Locale; // CSVの小数点を常に「.」で書くため
+import java.util.concurrent.ForkJoinPool; // ケースを並列に解くためのスレッドプール
+import java.util.concurrent.ForkJoinTask; // スレッドプールに投入したタスク
+import java.util.concurrent.atomic.AtomicLong; // ケース間で共有する余った時間
+import java.util.stream.Stream; // ディレクトリの一覧を扱うためのストリーム
+
+/**
+ * 入力ケースのディレクトリをまとめて解き、ローカルで採点するバッチ実行用のクラス。
+ * 1つのJVMの中で全てのケースを並列に解き、出力した操作コマンド列をScorerで元の入力に対して再生して採点します。
+ * ケースごとの結果をCSVに書き出し、得点の平均・パーセンタイル、実行時間、1秒あたりのケース数を標準出力に表示します。
+ *
+ * 使い方: java BatchRunner <入力ディレクトリ> [結果CSVのパス]
+ *   -DtimeLimitMs=... 1ケースあたりの改善フェーズの制限時間（既定はMain.DEFAULT_TIME_LIMIT_MS）
+ *   -Dthreads=...     同時に解くケースの数（既定は利用可能なプロセッサ数）
+ *   -DoutDir=...      指定すると、各ケースの操作コマンド列を <ケース名>.out として書き出します
+ *   -Dstats=true      全ケースの計測の集計（Statsを参照）を最後に書き出します
+ *   -DwarmStartDir=... このディレクトリにある前回の <ケース名>.out を初期解にして改善します。操作回数が減らなかったケースは
+ *                     前回の出力をそのまま使います（-DoutDirと同じディレクトリなら、減ったケースだけ書き換えます）。
+ *                     CSVと集計には、前回の出力を使ったケースではその結果を出します
+ *   -DgapTarget=...   総移動回数の下限（LowerBound）に対するギャップがこれ以下になったケースは早めに打ち切り、
+ *                     使わなかった時間を後から解くケースの制限時間に上乗せします（1ケースあたり最大で制限時間の2倍まで）。
+ *                     打ち切ったケース自体はその分だけ悪くなるので、目標を大きくしすぎないでください
+ *                     （N=20では焼きなまし法の後でもギャップは0.4前後あり、0.5では改善を始めてすぐに打ち切られます）
+ *
+ * CSVと集計には、各ケースの下限と、出力の総移動回数の下限に対するギャップも出します。
+ */
+public class BatchRunner {
+    // ギャップの目標に届いて早めに打ち切ったケースが使わなかった時間（ミリ秒）。後から解くケースが引き出します。
+    private static final AtomicLong timeBank = new AtomicLong();
+
+    /** 1ケース分の実行結果 */
+    static class CaseResult {
+        final String name;           // ケース名（入力ファイル名）
+        final Scorer.Result result;  // 採点結果
+        final long solveMillis;      // 解くのにかかった時間（ミリ秒）
+        final String warmStart;      // 前回の出力を初期解にした結果（none: 前回の出力なし, improved: 書き換えた, kept: 前回のまま）
+        final long lowerBound;       // 総移動回数の下限
+        final double gap;            // 出力の総移動回数の、下限に対するギャップ
+        final boolean stoppedAtGap;  // ギャップの目標に届いて早めに打ち切ったかどうか
+
+        CaseResult(String name, Scorer.Result result, long solveMillis, String warmStart,
+                long lowerBound, boolean stoppedAtGap) {
+            this.name = name;
+            this.result = result;
+            this.solveMillis = solveMillis;
+            this.warmStart = warmStart;
+            this.lowerBound = lowerBound;
+            this.gap = LowerBound.gap(result.moves, lowerBound);
+            this.stoppedAtGap = stoppedAtGap;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java BatchRunner <input-dir> [result.csv]");
+            System.exit(2);
+        }
+        Path inputDir = Paths.get(args[0]);
+        Path csvPath = Paths.get(args.length >= 2 ? args[1] : "batch_result.csv");
+        long timeLimitMs = Long.getLong("timeLimitMs", Main.DEFAULT_TIME_LIMIT_MS);
+        int threads = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+        String outDir = System.getProperty("outDir");
+        if (outDir != null) Files.createDirectories(Paths.get(outDir));
+
+        // 入力ディレクトリ内の通常ファイルを、名前順に全てケースとして扱います。
+        List<Path> cases = new ArrayList<>();
+        try (Stream<Path> files = Files.list(inputDir)) {
+            files.filter(Files::isRegularFile)
+                 .filter(f -> !f.getFileName().toString().startsWith("."))
+                 .sorted()
+                 .forEach(cases::add);
+        }
+
+        long wallStart = System.nanoTime();
+        List<CaseResult> results = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            List<ForkJoinTask<CaseResult>> tasks = new ArrayList<>();
+            for (Path file : cases) {
+                tasks.add(pool.submit(() -> solveCase(file, timeLimitMs, outDir)));
+            }
+            for (ForkJoinTask<CaseResult> task : tasks) {
+                results.add(task.join());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        double wallSeconds = (System.nanoTime() - wallStart) / 1e9;
+
+        writeCsv(csvPath, results);
+        printSummary(results, wallSeconds);
+        Stats.report();
+    }
+
+    /**
+     * 1つのケースを読み込んで解き、出力を採点します。
+     * ケースごとに独立したSolverを使い、改善フェーズの制限時間はこのケースを解き始めた時点から数えます。
+     * 制限時間には、それまでに早めに打ち切ったケースが余らせた時間を最大でtimeLimitMsまで上乗せします。
+     */
+    static CaseResult solveCase(Path file, long timeLimitMs, String outDir) throws IOException {
+        Instance instance;
+        Stats.Span span = Stats.begin(Stats.Phase.PARSE);
+        try (BufferedReader br = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            instance = Instance.read(br);
+        }
+        String name = file.getFileName().toString();
+        String outName = name.replaceFirst("\\.txt$", "") + ".out";
+        Path outFile = outDir != null ? Paths.get(outDir, outName) : null;
+        // 前回の出力があれば、検証してトリップの一覧に戻し、初期解にします。
+        String warmStartDir = System.getProperty("warmStartDir");
+        Path prevFile = warmStartDir != null ? Paths.get(warmStartDir, outName) : null;
+        ActionLog incumbent = null;
+        TripPlan initial = null;
+        if (prevFile != null && Files.exists(prevFile)) {
+            incumbent = WarmStart.load(instance, prevFile);
+            if (incumbent != null) {
+                initial = WarmStart.toPlan(new BoxTable(instance.n, instance.weights, instance.durabilities),
+                        instance.n, incumbent);
+            }
+        }
+        span.end();
+        long start = System.nanoTime();
+        long allotted = timeLimitMs + withdraw(timeLimitMs);
+        Solver solver = new Solver(instance.n, instance.weights, instance.durabilities, allotted);
+        solver.solve(initial);
+        long solveMillis = (System.nanoTime() - start) / 1_000_000L;
+        if (Stats.ENABLED) Stats.recordSolution(solver);
+        if (solver.stoppedAtGap()) timeBank.addAndGet(Math.max(0, allotted - solveMillis));
+        boolean improved = incumbent == null || solver.operationCount() < incumbent.operationCount();
+        ActionLog best = improved ? solver.actions : incumbent;
+        // 前回の出力と同じファイルには、良くなったときだけ書きます。
+        if (outFile != null && (improved || !outFile.equals(prevFile))) {
+            // 途中で止まっても前回の出力が壊れないように、一時ファイルに書いてから置き換えます。
+            span = Stats.begin(Stats.Phase.OUTPUT);
+            Path tmp = Paths.get(outFile + ".tmp");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                best.writeTo(out);
+            }
+            Files.move(tmp, outFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            span.end();
+        }
+        String warmStart = incumbent == null ? "none" : improved ? "improved" : "kept";
+        return new CaseResult(name, Scorer.score(instance, best), solveMillis, warmStart,
+                solver.lowerBound(), solver.stoppedAtGap());
+    }
+
+    /** 余った時間から最大maxミリ秒を引き出して返します。 */
+    static long withdraw(long max) {
+        while (true) {
+            long banked = timeBank.get();
+            long taken = Math.min(banked, max);
+            if (taken <= 0 || timeBank.compareAndSet(banked, banked - taken)) return Math.max(0, taken);
+        }
+    }
+
+    /** ケースごとの結果をCSVに書き出します。 */
+    static void writeCsv(Path csvPath, List<CaseResult> results) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(csvPath, StandardCharsets.UTF_8))) {
+            out.println("case,boxes,operations,moves,picks,places,crushed,invalid,delivered,score,solve_ms,warm_start,"
+                    + "lower_bound,gap,gap_stop");
+            for (CaseResult c : results) {
+                Scorer.Result r = c.result;
+                out.println(c.name + "," + r.boxes + "," + r.operations + "," + r.moves + "," + r.picks + ","
+                        + r.places + "," + r.crushed + "," + r.invalid + "," + r.delivered + "," + r.score + ","
+                        + c.solveMillis + "," + c.warmStart + "," + c.lowerBound + ","
+                        + String.format(Locale.ROOT, "%.4f", c.gap) + "," + c.stoppedAtGap);
+            }
+        }
+    }
+
+    /** 全ケースの集計（得点の平均とパーセンタイル、下限に対するギャップ、不正なケース数、実行時間、処理速度）を標準出力に表示します。 */
+    static void printSummary(List<CaseResult> results, double wallSeconds) {
+        int n = results.size();
+        long[] scores = new long[n];
+        long[] operations = new long[n];
+        double[] gaps = new double[n];
+        int invalidCases = 0, improvedCases = 0, keptCases = 0, gapStops = 0;
+        long scoreSum = 0, operationSum = 0;
+        double gapSum = 0;
+        for (int i = 0; i < n; i++) {
+            Scorer.Result r = results.get(i).result;
+            gaps[i] = results.get(i).gap;
+            gapSum += gaps[i];
+            if (results.get(i).stoppedAtGap) gapStops++;
+            scores[i] = r.score;
+            operations[i] = r.operations;
+            scoreSum += r.score;
+            operationSum += r.operations;
+            if (!r.isValid()) invalidCases++;
+            if (results.get(i).warmStart.equals("improved")) improvedCases++;
+            if (results.get(i).warmStart.equals("kept")) keptCases++;
+        }
+        Arrays.sort(scores);
+        Arrays.sort(operations);
+        Arrays.sort(gaps);
+        System.out.println("cases=" + n + " invalid_cases=" + invalidCases);
+        if (n > 0) {
+            System.out.printf("score: mean=%.1f p10=%d p50=%d p90=%d min=%d max=%d total=%d%n",
+                    (double) scoreSum / n, percentile(scores, 10), percentile(scores, 50), percentile(scores, 90),
+                    scores[0], scores[n - 1], scoreSum);
+            System.out.printf("operations: mean=%.1f p50=%d p90=%d p99=%d%n",
+                    (double) operationSum / n, percentile(operations, 50), percentile(operations, 90),
+                    percentile(operations, 99));
+            System.out.printf("gap: mean=%.3f p50=%.3f p90=%.3f max=%.3f stopped=%d%n",
+                    gapSum / n, percentile(gaps, 50), percentile(gaps, 90), gaps[n - 1], gapStops);
+        }
+        if (improvedCases + keptCases > 0) {
+            System.out.println("warm_start: improved=" + improvedCases + " kept=" + keptCases);
+        }
+        System.out.printf("wall=%.2fs cases/sec=%.2f%n", wallSeconds, n / Math.max(1e-9, wallSeconds));
+    }
+
+    /** 昇順に並んだ配列のpパーセンタイル（最近傍順位法）を返します。 */
+    static long percentile(long[] sorted, int p) {
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.min(sorted.length - 1, Math.max(0, rank - 1))];
+    }
+
+    /** 昇順に並んだ配列のpパーセンタイル（最近傍順位法）を返します。 */
+    static double percentile(double[] sorted, int p) {
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.min(sorted.length - 1, Math.max(0, rank - 1))];
+    }
+}
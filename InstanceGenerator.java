@@ -0,0 +1,76 @@
+import java.io.IOException; // 入出力処理における例外を扱うためのクラス
+import java.io.PrintWriter; // ケースを書き出すためのクラス
+import java.nio.charset.StandardCharsets; // 文字コードの指定
+import java.nio.file.Files; // ファイル操作のユーティリティ
+import java.nio.file.Path; // ファイルパス
+import java.nio.file.Paths; // 文字列からPathを作るためのユーティリティ
+
+/**
+ * シードから決定的に問題インスタンスを生成するクラス。
+ * (0,0)以外の全てのマスに箱を1つずつ置き、重さと耐久力をそれぞれ一様分布から選びます。
+ * 同じシードとサイズからは常に同じインスタンスが得られるので、ベンチマークや回帰テストの入力に使えます。
+ *
+ * 使い方: java InstanceGenerator <出力ディレクトリ> <ケース数> [開始シード] [N]
+ *   シードs（開始シードから連番）のケースを <出力ディレクトリ>/<sの4桁ゼロ埋め>.txt に書き出します。
+ */
+public class InstanceGenerator {
+    static final int DEFAULT_N = 20;             // 問題のグリッドサイズ
+    static final int MAX_WEIGHT = 1000;          // 箱の重さの上限（下限は1）
+    static final int MAX_DURABILITY = 100_000;   // 箱の耐久力の上限（下限は1）
+
+    /**
+     * シードとサイズからインスタンスを生成します。
+     * @param seed 乱数のシード
+     * @param n グリッドのサイズ
+     * @return 生成したインスタンス
+     */
+    static Instance generate(long seed, int n) {
+        java.util.SplittableRandom random = new java.util.SplittableRandom(seed);
+        int[][] weights = new int[n][n];
+        int[][] durabilities = new int[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (i == 0 && j == 0) continue; // (0,0)は出入り口なので箱を置きません。
+                weights[i][j] = 1 + random.nextInt(MAX_WEIGHT);
+                durabilities[i][j] = 1 + random.nextInt(MAX_DURABILITY);
+            }
+        }
+        return new Instance(n, weights, durabilities);
+    }
+
+    /**
+     * インスタンスを問題の入力フォーマット（1行目にN、続くN行に重さ、さらにN行に耐久力）で書き出します。
+     */
+    static void write(Instance instance, PrintWriter out) {
+        out.println(instance.n);
+        for (int[][] grid : new int[][][] {instance.weights, instance.durabilities}) {
+            for (int[] row : grid) {
+                StringBuilder line = new StringBuilder();
+                for (int j = 0; j < row.length; j++) {
+                    if (j > 0) line.append(' ');
+                    line.append(row[j]);
+                }
+                out.println(line);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java InstanceGenerator <out-dir> <count> [first-seed] [N]");
+            System.exit(2);
+        }
+        Path outDir = Paths.get(args[0]);
+        int count = Integer.parseInt(args[1]);
+        long firstSeed = args.length >= 3 ? Long.parseLong(args[2]) : 0;
+        int n = args.length >= 4 ? Integer.parseInt(args[3]) : DEFAULT_N;
+        Files.createDirectories(outDir);
+        for (int k = 0; k < count; k++) {
+            long seed = firstSeed + k;
+            Path file = outDir.resolve(String.format("%04d.txt", seed));
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+                write(generate(seed, n), out);
+            }
+        }
+    }
+}
@@ -1,12 +1,6 @@
 import java.io.BufferedReader; // 入力を効率的に読み込むためのクラス
 import java.io.IOException; // 入出力処理における例外を扱うためのクラス
 import java.io.InputStreamReader; // バイトストリームを文字ストリームに変換するためのクラス
-import java.util.ArrayList; // 可変長リストの実装
-import java.util.HashMap; // キーと値のペアを格納するハッシュマップの実装
-import java.util.HashSet; // 重複を許さない要素の集合を格納するハッシュセットの実装
-import java.util.List; // リストインターフェース
-import java.util.Map; // マップインターフェース
-import java.util.Set; // セットインターフェース
 import java.util.StringTokenizer; // 文字列を区切り文字で分割するためのクラス
 
 /**
@@ -14,6 +8,9 @@ import java.util.StringTokenizer; // 文字列を区切り文字で分割する
  * プログラムのエントリポイントであり、入力の読み込みとSolverの実行を行います。
  */
 public class Main {
+    // 改善フェーズに使う既定の制限時間（ミリ秒）。実行時間制限2秒から、入出力とJVMの起動分を差し引いた値です。
+    static final long DEFAULT_TIME_LIMIT_MS = 1700;
+
     /**
      * プログラムのメインメソッド。
      * @param args 
@@ -25,10 +22,82 @@ public class Main {
         // 高速な入力処理のためにBufferedReaderを使用します。
         // 標準入力System.inをInputStreamReaderで文字ストリームに変換し、BufferedReaderでバッファリングします。
         BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+        Stats.Span span = Stats.begin(Stats.Phase.PARSE);
+        Instance instance = Instance.read(br);
+        span.end();
+        int N = instance.n;
+        int[][] weights = instance.weights;
+        int[][] durabilities = instance.durabilities;
+
+        // 読み込んだN、weights、durabilitiesのデータを与え、設定の異なる複数のSolverを並列に実行します。
+        // 改善フェーズ（焼きなまし法）に使う制限時間は -DtimeLimitMs=...、並列数は -Dthreads=... で変更できます。
+        long deadlineNanos = System.nanoTime() + Long.getLong("timeLimitMs", DEFAULT_TIME_LIMIT_MS) * 1_000_000L;
+        int threads = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+        // -DwarmStart=前回の出力ファイル を指定すると、その解を初期解にして改善します。操作回数が減らなければ前回の解をそのまま出力します。
+        String warmStart = System.getProperty("warmStart");
+        ActionLog incumbent = null;
+        TripPlan initial = null;
+        if (warmStart != null) {
+            span = Stats.begin(Stats.Phase.PARSE);
+            incumbent = WarmStart.load(instance, java.nio.file.Paths.get(warmStart));
+            if (incumbent != null) initial = WarmStart.toPlan(new BoxTable(N, weights, durabilities), N, incumbent);
+            span.end();
+        }
+        Solver solver = Portfolio.solve(N, weights, durabilities, deadlineNanos, threads, initial);
+        ActionLog best = solver.actions;
+        if (incumbent != null && solver.operationCount() >= incumbent.operationCount()) {
+            // 出力先が前回の出力と同じファイルでも解が失われないように、前回の解を書き戻します。
+            System.err.println("warm start: no improvement over " + incumbent.operationCount() + " operations, writing it unchanged");
+            best = incumbent;
+        }
+        // 最も操作回数の少なかった解の操作コマンドを、文字列を作らずにバイト列として標準出力に書き出します。
+        // writeTo()がまとめて書くので、System.outのバッファを通さずにファイル記述子へ直接書きます。
+        span = Stats.begin(Stats.Phase.OUTPUT);
+        java.io.OutputStream out = new java.io.FileOutputStream(java.io.FileDescriptor.out);
+        best.writeTo(out);
+        out.flush();
+        span.end();
+        // -Dstats=true のときは、計測した集計を書き出します。
+        Stats.report();
+    }
+}
+
+/**
+ * 1つの問題インスタンス（グリッドのサイズと、各マスの箱の重さ・耐久力）を保持するクラス。
+ * 標準入力からの読み込みだけでなく、バッチ実行でファイルから読み込む場合にも使います。
+ */
+class Instance {
+    final int n;                 // グリッドの一辺のサイズ
+    final int[][] weights;       // グリッド上の各位置にある箱の重さ
+    final int[][] durabilities;  // グリッド上の各位置にある箱の耐久力
+
+    Instance(int n, int[][] weights, int[][] durabilities) {
+        this.n = n;
+        this.weights = weights;
+        this.durabilities = durabilities;
+    }
 
-        int N = 20; //固定20
-        br.readLine(); // 問題の入力フォーマットでは、最初の行にNの値がありますが、今回は固定値なので読み飛ばします。
+    /**
+     * 問題の入力フォーマット（1行目にN、続くN行に重さ、さらにN行に耐久力）で書かれたインスタンスを読み込みます。
+     * @param br 入力元
+     * @return 読み込んだインスタンス
+     * @throws IOException 入力の読み込み中に発生する可能性のある例外
+     */
+    static Instance read(BufferedReader br) throws IOException {
+        // 最初の行はグリッドのサイズNです（問題ではN=20ですが、より大きなグリッドも扱えます）。
+        int N = Integer.parseInt(br.readLine().trim());
+        return read(N, br);
+    }
 
+    /**
+     * 1行目のNを読み終えた入力から、重さと耐久力のグリッドを読み込みます。
+     * 複数のインスタンスを連結した入力（SolverServer）で、要求の区切りを確かめてから読むときに使います。
+     * @param N グリッドのサイズ
+     * @param br 入力元（Nの次の行から）
+     * @return 読み込んだインスタンス
+     * @throws IOException 入力の読み込み中に発生する可能性のある例外
+     */
+    static Instance read(int N, BufferedReader br) throws IOException {
         // グリッド上の各位置にある箱の重さを格納する2次元配列
         int[][] weights = new int[N][N];
         // グリッド上の各位置にある箱の耐久力を格納する2次元配列
@@ -50,391 +119,3609 @@ public class Main {
                 durabilities[i][j] = Integer.parseInt(st.nextToken()); // 文字列を整数に変換して格納
             }
         }
-
-        // Solverクラスのインスタンスを生成し、読み込んだN、weights、durabilitiesのデータを与えます。
-        Solver solver = new Solver(N, weights, durabilities);
-        // Solverのsolveメソッドを呼び出し、箱の運搬問題を解きます。
-        solver.solve();
-    }
-}
-
-/**
- * ダンボール箱の情報をカプセル化するクラス。
- * 各箱は一意のID、グリッド上の位置、重さ、そして初期耐久力と現在の耐久力を持っています。
- */
-class Box {
-    int id;           // 箱のユニークな識別子 (0から始まる連番)
-    int r, c;         // 箱が現在位置するグリッドの行座標 (r) と列座標 (c)
-    int w;            // 箱自体の重さ
-    long d_initial;   // 箱の初期耐久力。この値は変化しません。
-    long d_current;   // 箱の現在の耐久力。移動によって受けるダメージでこの値が減少します。
-
-    /**
-     * Boxクラスのコンストラクタ。
-     * 新しい箱オブジェクトを初期化します。
-     * @param id 箱のID
-     * @param r 箱の行座標
-     * @param c 箱の列座標
-     * @param w 箱の重さ
-     * @param d 箱の初期耐久力
-     */
-    public Box(int id, int r, int c, int w, int d) {
-        this.id = id;
-        this.r = r;
-        this.c = c;
-        this.w = w;
-        this.d_initial = d;
-        this.d_current = d; // 最初は現在の耐久力も初期耐久力と同じ値で設定されます。
-    }
-
-    /**
-     * コピーコンストラクタ。
-     * 既存のBoxオブジェクトの全てのプロパティを新しいBoxオブジェクトにコピーします。
-     * これにより、シミュレーションなどで箱の状態を一時的に変更したい場合に、
-     * 元の箱のデータに影響を与えずに安全に操作できます（ディープコピー）。
-     * @param other コピー元のBoxオブジェクト
-     */
-    public Box(Box other) {
-        this.id = other.id;
-        this.r = other.r;
-        this.c = other.c;
-        this.w = other.w;
-        this.d_initial = other.d_initial;
-        this.d_current = other.d_current;
+        return new Instance(N, weights, durabilities);
     }
 }
 
 /**
- * ダンボール運搬問題の解決ロジックを実装する主要なクラス。
- * 高橋社長の移動、箱のピックアップ、最適な輸送計画の策定、およびその計画のシミュレーションを行います。
+ * 操作コマンド列を元の重さ・耐久力に対して再生し、公式ルールどおりに採点するクラス。
+ * Solverの内部状態には一切依存しないので、Solverの計画や実行にバグがあっても正しい得点が得られます。
+ * ルール:
+ *   - U/D/L/R: 隣のマスへ移動します。グリッドの外へ出る移動は不正な操作です。
+ *     移動するたびに、手に持っている各箱の耐久力がその箱の上に積まれた箱の総重量だけ減り、0以下になった箱は潰れます。
+ *     移動先が(0,0)なら、手に持っている箱は全て運び出されます。
+ *   - 1: 現在位置の箱を手に持ったスタックの一番上に積みます。現在位置に箱がなければ不正な操作です。
+ *   - 2: スタックの一番上の箱を現在位置に置きます。手が空、または現在位置に箱がある場合は不正な操作です。
+ * 得点は、全ての箱を潰さずに運び出せた場合は N² + 2N³ - (操作回数)、そうでなければ運び出せた箱の数です。
  */
-class Solver {
-    final int N;             // グリッドの一辺のサイズ (例: 20x20グリッドの場合、N=20)
-    int px, py;              // 高橋社長の現在位置の行座標 (px) と列座標 (py)
-    List<Box> hand;          // 高橋社長が現在手に持っている箱のリスト。スタックのように機能します
-                             // (hand.get(hand.size()-1) が一番上に積まれた箱)。
-    StringBuilder actions;   // 高橋社長の全ての操作コマンド（例: U, D, L, R, 1）を記録するためのビルダ。
-                             // 最後にまとめて標準出力に出力されます。
-    Map<Integer, Box> boxes; // 全ての箱を、そのユニークなIDをキーとして管理するマップ。
-                             // これにより、IDから素早く対応するBoxオブジェクトを取得できます。
+class Scorer {
+    /** 採点結果 */
+    static class Result {
+        long operations;  // 操作回数の合計（N=1000では20億回近くになるので、ActionLogと同じくlongで数えます）
+        long moves;       // 移動（U/D/L/R）の回数
+        int picks;        // 持ち上げる操作（1）の回数
+        int places;       // 置く操作（2）の回数
+        int crushed;      // 潰れた箱の数
+        int invalid;      // 不正な操作の数（実行されずに無視されます）
+        int delivered;    // (0,0)へ運び出せた箱の数
+        int boxes;        // 箱の総数
+        long score;       // 公式ルールによる得点
 
-    // グリッドの状態を保持する2次元配列。
-    // 各マスに箱がある場合はその箱のIDを、箱がない場合は-1を格納します。
-    // 社長が箱を拾うと、該当するマスの値は-1に更新されます。
-    private int[][] grid; 
+        /** 全ての箱を潰さず、不正な操作もなく運び出せたかどうかを返します。 */
+        boolean isValid() {
+            return this.crushed == 0 && this.invalid == 0 && this.delivered == this.boxes;
+        }
+    }
 
     /**
-     * Solverクラスのコンストラクタ。
-     * 問題の初期状態（グリッドサイズ、箱の重さ、耐久力）を設定し、
-     * 全ての箱オブジェクトを生成して管理します。
-     * @param n グリッドのサイズ
-     * @param weights 各マスの箱の重さを表す2次元配列
-     * @param durabilities 各マスの箱の耐久力を表す2次元配列
+     * 操作コマンド列を再生して採点します。
+     * @param instance 元の問題インスタンス
+     * @param actions 操作コマンド列（U/D/L/R/1/2を空白や改行で区切ったもの。区切りはなくても構いません）
+     * @return 採点結果
      */
-    public Solver(int n, int[][] weights, int[][] durabilities) {
-        this.N = n;
-        this.px = 0; // 社長の初期位置は常に(0,0)です。
-        this.py = 0;
-        this.hand = new ArrayList<>(); // 手持ちの箱リストを初期化
-        this.actions = new StringBuilder(); // アクション記録用のStringBuilderを初期化
-        this.boxes = new HashMap<>(); // 箱管理用のマップを初期化
-        this.grid = new int[N][N]; // グリッド状態管理用の配列を初期化
-
-        int boxIdCounter = 0; // 箱にユニークなIDを割り当てるためのカウンター
-        // 入力された重さ情報に基づいて、グリッド上の箱をBoxオブジェクトとして生成します。
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
-                if (weights[i][j] > 0) { // 重さが0より大きい場合、そのマスには箱が存在します。
-                    // 新しいBoxオブジェクトを生成し、ID、位置、重さ、耐久力を設定します。
-                    Box box = new Box(boxIdCounter, i, j, weights[i][j], durabilities[i][j]);
-                    this.boxes.put(boxIdCounter, box); // 生成した箱をマップに追加
-                    this.grid[i][j] = boxIdCounter; // グリッド上に箱のIDを記録
-                    boxIdCounter++; // 次の箱のためにIDカウンターをインクリメント
-                } else {
-                    this.grid[i][j] = -1; // 箱がないマスは-1でマークします。
-                }
-            }
+    static Result score(Instance instance, CharSequence actions) {
+        Replay replay = new Replay(instance);
+        for (int k = 0; k < actions.length(); k++) {
+            // U/D/L/R/1/2以外の文字（改行や空白）は区切りとして読み飛ばします。
+            replay.apply(actions.charAt(k));
         }
+        return replay.finish();
     }
 
     /**
-     * 問題解決の全プロセスを実行します。
-     * 未輸送の箱がなくなるまで、一連の輸送サイクルを繰り返します。
-     * 各サイクルでは、最適な箱の組み合わせを計画し、実行します。
+     * ActionLogに記録された操作コマンド列を、文字列に展開せずに再生して採点します。
+     * @param instance 元の問題インスタンス
+     * @param actions 操作コマンド列
+     * @return 採点結果
      */
-    public void solve() {
-        // まだ輸送されていない箱のIDを管理するセット。
-        // 初期状態では全ての箱のIDが含まれています。
-        Set<Integer> remainingBoxIds = new HashSet<>(this.boxes.keySet());
-
-        // 輸送すべき箱が残っている限り、このメインループを繰り返します。
-        while (!remainingBoxIds.isEmpty()) {
-            // 各輸送サイクルの開始時、社長は必ず(0,0)にいて、手は空である状態にします。
-            this.moveTo(0, 0); // 現在位置から(0,0)へ移動し、その間のダメージを計算・適用
-            this.hand.clear(); // 手持ちの箱を全て降ろします（スタックを空にする）
-
-            // この現在の輸送サイクルで運ぶことを計画している箱のIDリスト。
-            List<Integer> planIds = new ArrayList<>(); 
-
-            // この内部ループでは、現在の輸送サイクルで一度に運べる最適な箱の組み合わせ（計画）を貪欲に構築します。
-            // (0,0)からスタートし、複数の箱を連続して拾う経路を想定します。
-            while (true) {
-                int bestNextBoxId = -1; // 今回のイテレーションで計画に追加する最適な箱のIDを初期化
-                // 評価値の最小値を保持。最初は可能な限り大きな値で初期化し、より良い（小さい）評価値が見つかれば更新します。
-                double min_eval_value = Double.MAX_VALUE; 
-
-                // 現在の計画において、最後に箱を拾った場所、または計画がまだ空の場合（最初の箱を探す場合）は社長の現在位置(0,0)
-                int current_r = this.px;
-                int current_c = this.py;
-                if (!planIds.isEmpty()) {
-                    // 計画に既に箱がある場合、最後に拾った箱の位置を現在の出発点とします。
-                    Box lastBoxInPlan = this.boxes.get(planIds.get(planIds.size() - 1));
-                    current_r = lastBoxInPlan.r;
-                    current_c = lastBoxInPlan.c;
-                }
-                
-                // 次に計画に追加する候補となる箱のIDリストを作成します。
-                // まだ輸送されていない箱（remainingBoxIds）から、既に現在の計画に追加済みの箱（planIds）を除外します。
-                Set<Integer> candidateIds = new HashSet<>(remainingBoxIds);
-                candidateIds.removeAll(new HashSet<>(planIds));
-                
-                if (candidateIds.isEmpty()) {
-                    // 候補となる箱がもうない場合、このサイクルの計画構築は終了です。
-                    break; 
-                }
-                
-                // 残っている全ての候補箱についてループし、現在の計画に追加可能かシミュレーションして評価します。
-                for (int boxId : candidateIds) {
-                    Box box = this.boxes.get(boxId); // 候補となる箱のオブジェクトを取得
-                    // 社長の現在の出発点から候補の箱までのマンハッタン距離を計算します。
-                    int dist = Math.abs(box.r - current_r) + Math.abs(box.c - current_c);
-                    
-                    // 候補の箱を現在の計画に追加した場合の「仮の新しい計画」を作成します。
-                    List<Integer> nextPlan = new ArrayList<>(planIds);
-                    nextPlan.add(boxId);
-
-                    // この「仮の新しい計画」が、箱が潰れることなく最後まで実行可能かをisPlanFeasibleメソッドでシミュレーションチェックします。
-                    if (isPlanFeasible(nextPlan)) {
-                        // ★重要: 評価関数の計算★
-                        // (移動距離) / (箱の重さ) を評価値とします。
-                        // この値が小さいほど「効率が良い」と判断します。
-                        // 例: 同じ移動距離なら、より重い箱を優先します（分母が大きいほど評価値が小さくなる）。
-                        // 例: 同じ重さなら、より近い箱を優先します（分子が小さいほど評価値が小さくなる）。
-                        // ※問題の制約上、箱の重さが0のケースは存在しないため、0除算の心配はありません。
-                        double current_eval_value = (double)dist / box.w; 
-                        
-                        // 現在までに見つかった最も良い評価値 (min_eval_value) と比較し、
-                        // より良い（小さい）評価値であれば、それを最良の候補として更新します。
-                        if (current_eval_value < min_eval_value) {
-                            min_eval_value = current_eval_value;
-                            bestNextBoxId = boxId; // 最も評価値の良かった箱のIDを記録
-                        }
-                    }
-                }
+    static Result score(Instance instance, ActionLog actions) {
+        Replay replay = new Replay(instance);
+        for (int k = 0; k < actions.runCount(); k++) {
+            char op = actions.opAt(k);
+            for (int i = actions.countAt(k); i > 0; i--) replay.apply(op);
+        }
+        return replay.finish();
+    }
 
-                if (bestNextBoxId != -1) {
-                    // 最も評価値の良かった箱が見つかった場合、それをこのサイクルの確定計画に追加します。
-                    planIds.add(bestNextBoxId);
-                } else {
-                    // 現在の状況で、安全に実行可能な追加の箱が見つからなかった場合、
-                    // このサイクルの計画構築はこれ以上続けられないため、ループを終了します。
-                    break; 
-                }
-            }
-            
-            // --- フォールバック戦略 ---
-            // 上記の計画構築ループで、複数の箱を運ぶ計画が一つも立てられなかった場合（planIdsが空の場合）
-            // かつ、まだ未輸送の箱が残っている場合、単独で運べる箱がないか再探索します。
-            if (planIds.isEmpty() && !remainingBoxIds.isEmpty()) {
-                double min_eval_value = Double.MAX_VALUE; // ここでも評価値で比較し、単独で運ぶ最も効率的な箱を探します。
-                int singleTargetId = -1; // 単独で運ぶ最適な箱のIDを初期化
+    /** 操作を1つずつ適用していく再生中の状態 */
+    private static class Replay {
+        private final int n;
+        private final BoxTable boxes;
+        private final long[] durability;  // 再生中の残り耐久力
+        private final boolean[] isCrushed;
+        private final int[][] cell;       // 各マスに置かれている箱のID（なければ-1）
+        private final int[] hand;
+        private int handSize;
+        private int x, y;                 // 社長の現在位置
+        private final Result result = new Result();
 
-                // 未輸送の箱全てを対象に、単独で運ぶ計画が実行可能かチェックします。
-                for (int boxId : remainingBoxIds) {
-                    Box box = this.boxes.get(boxId);
-                    // 社長の現在位置（0,0）からこの箱までの距離を計算
-                    int dist = Math.abs(box.r - this.px) + Math.abs(box.c - this.py);
-                    List<Integer> singleBoxPlan = new ArrayList<>();
-                    singleBoxPlan.add(boxId); // その箱単独の計画を作成
+        Replay(Instance instance) {
+            this.n = instance.n;
+            this.boxes = new BoxTable(this.n, instance.weights, instance.durabilities);
+            this.durability = this.boxes.dInitial.clone();
+            this.isCrushed = new boolean[this.boxes.size];
+            this.cell = new int[this.n][this.n];
+            for (int i = 0; i < this.n; i++) java.util.Arrays.fill(this.cell[i], -1);
+            for (int id = 0; id < this.boxes.size; id++) this.cell[this.boxes.r[id]][this.boxes.c[id]] = id;
+            this.hand = new int[this.boxes.size];
+            this.result.boxes = this.boxes.size;
+        }
 
-                    // この単独の箱を運ぶ計画が、箱を潰さずに実行可能かisPlanFeasibleでチェックします。
-                    if (isPlanFeasible(singleBoxPlan)) { 
-                        double current_eval_value = (double)dist / box.w; // 単独輸送の場合も同様の評価関数を使用
-                        if (current_eval_value < min_eval_value) {
-                            min_eval_value = current_eval_value;
-                            singleTargetId = boxId; // 最も評価値の良かった単独の箱を記録
-                        }
+        /** 操作chを1つ適用します。操作を表す文字以外は無視します。 */
+        void apply(char ch) {
+            Result result = this.result;
+            if (ch == '1') {
+                result.operations++;
+                result.picks++;
+                int id = this.cell[this.x][this.y];
+                if (id < 0) { result.invalid++; return; }
+                this.cell[this.x][this.y] = -1;
+                this.hand[this.handSize++] = id;
+            } else if (ch == '2') {
+                result.operations++;
+                result.places++;
+                if (this.handSize == 0 || this.cell[this.x][this.y] >= 0) { result.invalid++; return; }
+                this.cell[this.x][this.y] = this.hand[--this.handSize];
+            } else if (ch == 'U' || ch == 'D' || ch == 'L' || ch == 'R') {
+                result.operations++;
+                result.moves++;
+                int nx = this.x + (ch == 'D' ? 1 : ch == 'U' ? -1 : 0);
+                int ny = this.y + (ch == 'R' ? 1 : ch == 'L' ? -1 : 0);
+                if (nx < 0 || nx >= this.n || ny < 0 || ny >= this.n) { result.invalid++; return; }
+                this.x = nx;
+                this.y = ny;
+                // 一番上の箱から順に、上に積まれた箱の総重量だけ耐久力を減らします。
+                long above = 0;
+                for (int i = this.handSize - 1; i >= 0; i--) {
+                    int id = this.hand[i];
+                    this.durability[id] -= above;
+                    if (this.durability[id] <= 0 && !this.isCrushed[id]) {
+                        this.isCrushed[id] = true;
+                        result.crushed++;
                     }
+                    above += this.boxes.w[id];
                 }
-                if (singleTargetId != -1) {
-                    // 単独で安全に運べる箱が見つかった場合、その箱を現在の計画に追加します。
-                    planIds.add(singleTargetId); 
-                } else {
-                    // どの箱も単独ですら安全に運べない極端な状況の場合、
-                    // 現在の戦略ではこれ以上箱を運べないため、無限ループを防ぐためにここでメインループを抜けます。
-                    System.err.println("Warning: No box can be transported safely, even individually. Breaking loop.");
-                    break; 
+                if (this.x == 0 && this.y == 0) {
+                    // (0,0)に着いたら、手に持っている箱は全て運び出されます（潰れた箱は数えません）。
+                    for (int i = 0; i < this.handSize; i++) {
+                        if (!this.isCrushed[this.hand[i]]) result.delivered++;
+                    }
+                    this.handSize = 0;
                 }
             }
+        }
 
-            // フォールバック戦略を試した後でも計画が空で、かつ未輸送の箱がまだ残っている場合、
-            // これは現在の戦略では解決不可能な状態である可能性が高いです。
-            // この場合も無限ループや不適切な動作を防ぐために、メインループを抜けます。
-            if (planIds.isEmpty() && !remainingBoxIds.isEmpty()) {
-                System.err.println("Error: Plan is empty but remaining boxes exist. Strategy might be stuck or unsuitable.");
-                break;
+        /** 得点を計算して採点結果を返します。 */
+        Result finish() {
+            Result result = this.result;
+            long n = this.n;
+            if (result.crushed == 0 && result.delivered == result.boxes && result.operations <= 2L * n * n * n) {
+                result.score = n * n + 2L * n * n * n - result.operations;
+            } else {
+                result.score = result.delivered;
+            }
+            return result;
+        }
+    }
+}
+
+/**
+ * 操作コマンド列を「操作の種類 + 連続する回数」のランレングス符号で保持するクラス。
+ * 1つのランは int 1つ（下位3ビットが操作の種類、残りが回数）で、同じ操作を続けて追加すると最後のランの回数が増えるだけです。
+ * 移動は1区間がそのまま1つのランになるので、解全体を保存・コピーしても数KB程度で済みます。
+ *
+ * mark()で取ったチェックポイントまでtruncate()で巻き戻せます（取り除くランの数に比例する時間で、コピーは発生しません）。
+ * 出力はwriteTo()でバイト列として直接書き出し、途中で文字列を作りません。
+ * 大きなグリッドでは出力が数GBになるので、1操作ずつ書き込まずに、操作ごとに作っておいた「X\n」の繰り返しをまとめてコピーします。
+ * 出力形式（1行に1操作）のテキストはdecode()で読み戻せます。
+ */
+class ActionLog {
+    private static final char[] OPS = {'U', 'D', 'L', 'R', '1', '2'}; // 操作の種類の番号 → 出力する文字
+    private static final int OP_BITS = 3;
+    private static final int OP_MASK = (1 << OP_BITS) - 1;
+    private static final int MAX_RUN = Integer.MAX_VALUE >>> OP_BITS; // 1つのランに入る最大の回数
+    private static final int CHUNK_BYTES = 1 << 16; // 書き出しの単位（バイト、偶数）
+    // 操作の種類ごとの、出力形式（1行に1操作）の繰り返しCHUNK_BYTESバイト分。writeTo()はここからコピーします。
+    private static final byte[][] PATTERNS = new byte[OPS.length][CHUNK_BYTES];
+    static {
+        for (int code = 0; code < OPS.length; code++) {
+            for (int i = 0; i < CHUNK_BYTES; i += 2) {
+                PATTERNS[code][i] = (byte) OPS[code];
+                PATTERNS[code][i + 1] = '\n';
             }
+        }
+    }
 
-            // --- 確定した輸送計画の実行 ---
-            // 策定された計画（planIdsに格納された箱の順序）に従って、実際に箱を運搬する操作を行います。
-            for (int boxId : planIds) {
-                Box box = this.boxes.get(boxId); // 運ぶ箱のオブジェクトを取得
-                this.moveTo(box.r, box.c); // 社長を箱の場所へ移動させ、移動コマンドを記録し、手持ちの箱にダメージを適用します。
-                this.pick(box);             // 箱を拾い上げ、手持ちに追加し、ピックアップコマンドを記録します。
-                this.grid[box.r][box.c] = -1; // 拾った箱の場所は空になるため、グリッドの状態を更新します。
+    private int[] runs;     // ランの列（count << OP_BITS | 操作の種類の番号）
+    private int size;       // ランの数
+    private long operations; // 操作の総数
+
+    public ActionLog() {
+        this.runs = new int[64];
+    }
+
+    /** 操作opをcount回追加します（countが0以下なら何もしません）。 */
+    void append(char op, int count) {
+        if (count <= 0) return;
+        int code = codeOf(op);
+        this.operations += count;
+        if (this.size > 0) {
+            int last = this.runs[this.size - 1];
+            int merged = Math.min(count, MAX_RUN - (last >>> OP_BITS));
+            if ((last & OP_MASK) == code && merged > 0) {
+                // 最後のランと同じ操作なら、そのランの回数を増やします。
+                this.runs[this.size - 1] = last + (merged << OP_BITS);
+                count -= merged;
             }
-            this.moveTo(0, 0); // 全ての計画された箱を拾い終えたら、最終的に(0,0)の原点へ帰還します。
+        }
+        while (count > 0) {
+            int chunk = Math.min(count, MAX_RUN);
+            if (this.size == this.runs.length) this.runs = java.util.Arrays.copyOf(this.runs, this.size * 2);
+            this.runs[this.size++] = (chunk << OP_BITS) | code;
+            count -= chunk;
+        }
+    }
+
+    /** 操作opを1回追加します。 */
+    void append(char op) {
+        append(op, 1);
+    }
+
+    /** 操作の総数を返します。 */
+    long operationCount() {
+        return this.operations;
+    }
+
+    /** ランの数を返します。 */
+    int runCount() {
+        return this.size;
+    }
+
+    /** k番目のランの操作（U/D/L/R/1/2）を返します。 */
+    char opAt(int k) {
+        return OPS[this.runs[k] & OP_MASK];
+    }
+
+    /** k番目のランの回数を返します。 */
+    int countAt(int k) {
+        return this.runs[k] >>> OP_BITS;
+    }
+
+    /**
+     * 現在の末尾を表すチェックポイントを返します。
+     * 最後のランは後から回数が増えることがあるので、ランの数と最後のランの回数の組で表します。
+     */
+    long mark() {
+        return ((long) this.size << 32) | (this.size == 0 ? 0 : this.runs[this.size - 1] >>> OP_BITS);
+    }
+
+    /** mark()で取ったチェックポイントの時点まで巻き戻します。 */
+    void truncate(long checkpoint) {
+        int targetSize = (int) (checkpoint >>> 32);
+        int lastCount = (int) checkpoint;
+        while (this.size > targetSize) this.operations -= this.runs[--this.size] >>> OP_BITS;
+        if (this.size > 0) {
+            int last = this.runs[this.size - 1];
+            this.operations -= (last >>> OP_BITS) - lastCount;
+            this.runs[this.size - 1] = (lastCount << OP_BITS) | (last & OP_MASK);
+        }
+    }
 
-            // このサイクルで輸送が完了した箱を、未輸送の箱リストから削除します。
-            remainingBoxIds.removeAll(new HashSet<>(planIds));
-        }
-
-        // 全ての箱の輸送が完了した後、記録された全てのアクション（操作コマンド）を一度に標準出力に出力します。
-        System.out.print(this.actions.toString());
-    }
-
-    /**
-     * 与えられた輸送計画（箱のIDリスト）が、箱の耐久力を超えることなく実行可能かどうかをシミュレートします。
-     * 社長は(0,0)から出発し、planIdsの箱を順に拾い、最終的に(0,0)へ帰還する経路を仮想的にたどります。
-     * このメソッドは、実際の箱の状態を変更することなく、計画の実行可能性を評価します。
-     * @param planIds このサイクルで運ぶ箱のIDリスト（順序が重要）
-     * @return 計画が箱を潰さずに完了できる場合はtrue、途中で箱が破損する場合はfalse
-     */
-    private boolean isPlanFeasible(List<Integer> planIds) {
-        if (planIds.isEmpty()) return true; // 計画が空であれば、何も移動しないので常に実行可能です。
-
-        // シミュレーション用に、現在の全ての箱の状態（特に耐久力）をディープコピーして使用します。
-        // これにより、isPlanFeasibleメソッドが実際の箱のデータに影響を与えることなく、独立してシミュレーションを行えます。
-        Map<Integer, Box> simulationBoxes = new HashMap<>();
-        for (Map.Entry<Integer, Box> entry : this.boxes.entrySet()) {
-            simulationBoxes.put(entry.getKey(), new Box(entry.getValue())); // Boxのコピーコンストラクタを使用して、各Boxオブジェクトを個別にコピーします。
-        }
-
-        int current_r_sim = 0; // シミュレーション中の社長の現在位置の行座標。初期値は(0,0)です。
-        int current_c_sim = 0; // シミュレーション中の社長の現在位置の列座標。
-        List<Box> tempHand_sim = new ArrayList<>(); // シミュレーション中の手持ちの箱スタック。
-
-        // 計画内の各箱について、その箱を拾いに行くまでの経路と、拾った後の状態をシミュレートします。
-        for (int pid : planIds) {
-            Box nextBox = simulationBoxes.get(pid); // 次に拾う予定の箱のオブジェクト（シミュレーション用コピー）を取得
-            // 現在のシミュレーション上の社長の位置から、次に拾う箱の場所までのマンハッタン距離を計算します。
-            int dist = Math.abs(nextBox.r - current_r_sim) + Math.abs(nextBox.c - current_c_sim);
-
-            // この移動による手持ちの箱へのダメージをシミュレーションします。
-            long weightOnTop_sim = 0; // 手持ちスタックの一番上にある箱の重さ（その下の箱に加わる荷重）を計算するための変数
-            // 手持ちスタックの底から順に（つまり、先に拾った箱から順に、上に積まれた箱の重さを考慮しながら）ダメージを計算します。
-            // スタックの一番上にある箱にはその上に積まれた箱がないため、重さがかかりません。
-            for (int i = tempHand_sim.size() - 1; i >= 0; i--) {
-                Box heldBox_sim = tempHand_sim.get(i); // 手に持っている箱（シミュレーション用コピー）
-                // この箱にかかるダメージは、「この箱より上にある箱の総重量」と「今回の移動距離」の積で計算されます。
-                heldBox_sim.d_current -= weightOnTop_sim * dist;
-                
-                // ★重要な破損チェック★
-                // シミュレーション中に箱の耐久力が0以下になった場合、その箱は潰れてしまいます。
-                // この計画は実行不可能と判断し、直ちにfalseを返してシミュレーションを中断します。
-                if (heldBox_sim.d_current <= 0) {
-                    // デバッグ用の出力例（本番環境では通常コメントアウト）
-                    // System.err.println("DEBUG: Simulating box " + heldBox_sim.id + " crushed during move to " + nextBox.r + "," + nextBox.c);
-                    return false; 
+    /** 全ての操作を取り除きます。 */
+    void clear() {
+        this.size = 0;
+        this.operations = 0;
+    }
+
+    /** 別の操作コマンド列の内容で、この列を上書きします。 */
+    void copyFrom(ActionLog other) {
+        if (this.runs.length < other.size) this.runs = new int[other.size];
+        System.arraycopy(other.runs, 0, this.runs, 0, other.size);
+        this.size = other.size;
+        this.operations = other.operations;
+    }
+
+    /**
+     * 操作コマンド列を、1行に1操作の出力形式でoutに書き出します。
+     * CHUNK_BYTESバイトずつ組み立てて書くので、outをさらにバッファで包む必要はありません。
+     */
+    void writeTo(java.io.OutputStream out) throws java.io.IOException {
+        byte[] buf = new byte[CHUNK_BYTES];
+        int pos = 0;
+        for (int k = 0; k < this.size; k++) {
+            byte[] pattern = PATTERNS[this.runs[k] & OP_MASK];
+            long left = 2L * countAt(k); // このランを書き出すバイト数
+            while (left > 0) {
+                if (pos == buf.length) {
+                    out.write(buf, 0, pos);
+                    pos = 0;
                 }
-                // 次の箱のために、現在の箱の重さを「その上にある箱の総重量」に加算します。
-                weightOnTop_sim += heldBox_sim.w;
+                // posもbufの長さも偶数なので、コピーは常に操作と改行の組の切れ目で終わります。
+                int n = (int) Math.min(left, buf.length - pos);
+                System.arraycopy(pattern, 0, buf, pos, n);
+                pos += n;
+                left -= n;
             }
+        }
+        out.write(buf, 0, pos);
+    }
 
-            tempHand_sim.add(nextBox); // 次の箱を拾って、シミュレーション上の手持ちスタックに追加します。
-            current_r_sim = nextBox.r; // シミュレーション上の社長の現在位置を、拾った箱の場所へ更新します。
-            current_c_sim = nextBox.c;
+    /** 出力形式の文字列を返します（小さな解の確認用です。大きな解にはwriteTo()を使ってください）。 */
+    @Override
+    public String toString() {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        try {
+            writeTo(out);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
         }
+        return new String(out.toByteArray(), java.nio.charset.StandardCharsets.US_ASCII);
+    }
 
-        // 計画内の全ての箱を拾い終えた後、最後に(0,0)の原点へ帰還する経路のシミュレーションを行います。
-        // この帰還経路でも、手持ちの箱にダメージがかかる可能性があるため、チェックが必要です。
-        int distToOrigin = Math.abs(0 - current_r_sim) + Math.abs(0 - current_c_sim);
-        weightOnTop_sim = 0; // 帰還経路のための重さ計算をリセット
-        // 同様に、手持ちスタックの底から順にダメージを適用します。
-        for (int i = tempHand_sim.size() - 1; i >= 0; i--) {
-            Box heldBox_sim = tempHand_sim.get(i);
-            heldBox_sim.d_current -= weightOnTop_sim * distToOrigin; // ダメージ計算
-            
-            // ★重要な破損チェック★
-            // 帰還中に箱の耐久力が0以下になった場合も、計画は実行不可能と判断しfalseを返します。
-            if (heldBox_sim.d_current <= 0) {
-                // デバッグ用の出力例
-                // System.err.println("DEBUG: Simulating box " + heldBox_sim.id + " crushed during move to origin (0,0)");
-                return false; 
+    /**
+     * 出力形式のテキスト（U/D/L/R/1/2を空白や改行で区切ったもの）を読み込みます。
+     * 空白・タブ・改行は区切りとして読み飛ばし、それ以外の文字があれば出力ではないファイルとみなして例外を投げます。
+     * @throws IllegalArgumentException 操作でも区切りでもない文字がある場合（文字と位置をメッセージに含めます）
+     */
+    static ActionLog decode(java.io.InputStream in) throws java.io.IOException {
+        ActionLog log = new ActionLog();
+        byte[] buf = new byte[1 << 16];
+        long offset = 0;
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            for (int i = 0; i < read; i++) {
+                log.appendDecoded((char) (buf[i] & 0xFF), offset + i);
             }
-            weightOnTop_sim += heldBox_sim.w; // 次の箱のために重さを加算
+            offset += read;
+        }
+        return log;
+    }
+
+    /**
+     * 出力形式の文字列を読み込みます。
+     * @throws IllegalArgumentException 操作でも区切りでもない文字がある場合
+     */
+    static ActionLog decode(CharSequence text) {
+        ActionLog log = new ActionLog();
+        for (int i = 0; i < text.length(); i++) {
+            log.appendDecoded(text.charAt(i), i);
+        }
+        return log;
+    }
+
+    /** decode()で読んだ1文字を、操作なら追加し、区切りなら読み飛ばします。 */
+    private void appendDecoded(char ch, long offset) {
+        if (isOp(ch)) {
+            append(ch);
+        } else if (ch != ' ' && ch != '\t' && ch != '\n' && ch != '\r') {
+            throw new IllegalArgumentException("unexpected character '" + ch + "' (0x" + Integer.toHexString(ch)
+                    + ") at offset " + offset);
         }
+    }
+
+    private static boolean isOp(char ch) {
+        return ch == 'U' || ch == 'D' || ch == 'L' || ch == 'R' || ch == '1' || ch == '2';
+    }
 
-        // シミュレーションの全行程（箱を拾いに行く移動と、原点への帰還移動）で、どの箱も潰れなかった場合、
-        // この計画は安全に実行可能であると判断し、trueを返します。
-        return true; 
+    private static int codeOf(char op) {
+        switch (op) {
+            case 'U': return 0;
+            case 'D': return 1;
+            case 'L': return 2;
+            case 'R': return 3;
+            case '1': return 4;
+            case '2': return 5;
+            default: throw new IllegalArgumentException("unknown operation: " + op);
+        }
     }
+}
+
+/**
+ * 以前の出力（操作コマンド列）を読み戻し、改善の初期解（トリップの一覧）にするクラス。
+ * 毎晩のバッチで前回までの最良の出力を初期解として焼きなまし法を続け、良くなったときだけ出力を置き換えるために使います。
+ *
+ * 操作コマンド列はまずScorerで公式ルールどおりに再生して検証し、箱が潰れる・不正な操作がある・運び残しがある出力は使いません。
+ * トリップは(0,0)に着いた時点の手の箱を、下から順に並べたものです（置く操作を使わない出力では拾った順と同じです）。
+ * 置く操作による中継はトリップの一覧では表せないので、中継なしでは潰れてしまうトリップは、
+ * 潰れない範囲で先頭から区切って複数のトリップに分けます（1箱だけのトリップは必ず実行できます）。
+ * 中継は -Dstaging=true の探索で改めて探します。
+ */
+class WarmStart {
+    private WarmStart() {}
 
     /**
-     * 指定された座標へ高橋社長を移動させ、その間の操作コマンドを記録し、
-     * 手持ちの箱に移動によるダメージを適用します。
-     * このメソッドは実際の移動とダメージ計算を行います。
-     * @param tr 移動先の行座標
-     * @param tc 移動先の列座標
+     * 操作コマンド列のファイルを読み込み、インスタンスに対して正しい解であれば返します。
+     * ファイルがない場合、操作コマンド列として読めない場合、正しい解でない場合は、理由を標準エラー出力に表示してnullを返します。
+     * @param instance 問題インスタンス
+     * @param file 以前の出力
+     * @return 読み込んだ操作コマンド列。使えない場合はnull
      */
-    private void moveTo(int tr, int tc) {
-        int dr = tr - this.px; // 行方向の移動量 (正なら下、負なら上)
-        int dc = tc - this.py; // 列方向の移動量 (正なら右、負なら左)
+    static ActionLog load(Instance instance, java.nio.file.Path file) throws java.io.IOException {
+        if (!java.nio.file.Files.isRegularFile(file)) {
+            System.err.println("warm start: " + file + " not found, solving from scratch");
+            return null;
+        }
+        ActionLog actions;
+        try (java.io.InputStream in = new java.io.BufferedInputStream(java.nio.file.Files.newInputStream(file))) {
+            actions = ActionLog.decode(in);
+        } catch (IllegalArgumentException e) {
+            System.err.println("warm start: " + file + " is not an action file (" + e.getMessage() + "), solving from scratch");
+            return null;
+        }
+        Scorer.Result result = Scorer.score(instance, actions);
+        if (!result.isValid()) {
+            System.err.println("warm start: " + file + " is not a valid solution (crushed=" + result.crushed
+                    + " invalid=" + result.invalid + " delivered=" + result.delivered + "/" + result.boxes
+                    + "), solving from scratch");
+            return null;
+        }
+        return actions;
+    }
 
-        int moveDist = Math.abs(dr) + Math.abs(dc); // マンハッタン距離による移動総距離
-        if (moveDist == 0) return; // 移動距離が0の場合、何もする必要がないので処理を終了します。
+    /**
+     * 検証済みの操作コマンド列をトリップの一覧に変換します。
+     * @param boxes 箱の属性テーブル（解くSolverと同じインスタンスから作ったもの）
+     * @param n グリッドのサイズ
+     * @param actions load()で検証した操作コマンド列
+     * @return 全ての箱をちょうど1回ずつ含むトリップの一覧（各トリップのcostも設定済み）
+     */
+    static TripPlan toPlan(BoxTable boxes, int n, ActionLog actions) {
+        int[] cell = new int[n * n]; // 各マスに置かれている箱のID（なければ-1）
+        java.util.Arrays.fill(cell, -1);
+        for (int id = 0; id < boxes.size; id++) cell[boxes.r[id] * n + boxes.c[id]] = id;
+        int[] hand = new int[boxes.size];
+        int handSize = 0, x = 0, y = 0;
+        TripPlan plan = new TripPlan(boxes.size);
+        for (int k = 0; k < actions.runCount(); k++) {
+            char op = actions.opAt(k);
+            for (int i = actions.countAt(k); i > 0; i--) {
+                if (op == '1') {
+                    hand[handSize++] = cell[x * n + y];
+                    cell[x * n + y] = -1;
+                } else if (op == '2') {
+                    cell[x * n + y] = hand[--handSize];
+                } else {
+                    x += op == 'D' ? 1 : op == 'U' ? -1 : 0;
+                    y += op == 'R' ? 1 : op == 'L' ? -1 : 0;
+                    if (x == 0 && y == 0 && handSize > 0) {
+                        addFeasibleTrips(boxes, plan, hand, handSize);
+                        handSize = 0;
+                    }
+                }
+            }
+        }
+        return plan;
+    }
 
-        // 移動コマンドを actions StringBuilder に追加します。
-        // U, D, L, R の順序は任意ですが、ここでは縦移動を先に、次に横移動を行います。
-        if (dr > 0) { // 下方向へ移動する場合
-            for (int i = 0; i < dr; i++) actions.append("D\n"); // Dコマンドをdr回追加
-        } else { // 上方向へ移動する場合 (drが負の値なので-drで回数を計算)
-            for (int i = 0; i < -dr; i++) actions.append("U\n"); // Uコマンドを-dr回追加
+    /** 箱の列seqを、中継なしで潰れない範囲で先頭から区切り、それぞれをトリップとしてplanに追加します。 */
+    private static void addFeasibleTrips(BoxTable boxes, TripPlan plan, int[] seq, int len) {
+        int[] rest = new int[len]; // まだトリップに入れていない箱の列
+        for (int start = 0; start < len; ) {
+            int m = len - start;
+            System.arraycopy(seq, start, rest, 0, m);
+            // 1箱だけのトリップは上に何も載らないので必ず実行でき、区切りは必ず1箱以上進みます。
+            int end = 1;
+            while (end < m && TripState.tourLength(boxes, rest, end + 1) >= 0) end++;
+            int t = plan.addTrip();
+            for (int k = 0; k < end; k++) plan.append(t, rest[k]);
+            plan.cost[t] = TripState.tourLength(boxes, plan.trips[t], plan.len[t]);
+            start += end;
         }
+    }
+}
 
-        if (dc > 0) { // 右方向へ移動する場合
-            for (int i = 0; i < dc; i++) actions.append("R\n"); // Rコマンドをdc回追加
-        } else { // 左方向へ移動する場合 (dcが負の値なので-dcで回数を計算)
-            for (int i = 0; i < -dc; i++) actions.append("L\n"); // Lコマンドを-dc回追加
+/**
+ * 全てのダンボール箱の情報を、箱IDを添字とする並列のプリミティブ配列で保持するクラス。
+ * 箱ごとにオブジェクトを作らないため、探索中に箱の属性を参照してもボクシングやGCが発生しません。
+ * 箱IDは(0,0)以外のマスを行優先で数えた0からの連番です。
+ */
+class BoxTable {
+    final int size;          // 箱の総数
+    final int[] r, c;        // 箱が置かれているマスの行座標 (r) と列座標 (c)
+    final int[] w;           // 箱自体の重さ
+    final long[] dInitial;   // 箱の初期耐久力。この値は変化しません。
+    final long[] dCurrent;   // 箱の現在の耐久力。移動によって受けるダメージでこの値が減少します。
+                             // 耐久力はオーバーフローを防ぐためにlong型で管理します。
+
+    /**
+     * BoxTableのコンストラクタ。
+     * Main.mainで読み込んだ重さ・耐久力のグリッドから、重さが0より大きいマスを箱として登録します。
+     * @param n グリッドのサイズ
+     * @param weights 各マスの箱の重さを表す2次元配列
+     * @param durabilities 各マスの箱の耐久力を表す2次元配列
+     */
+    public BoxTable(int n, int[][] weights, int[][] durabilities) {
+        int count = 0; // まず箱の数を数えて、配列をちょうどの大きさで確保します。
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (weights[i][j] > 0) count++;
+            }
+        }
+        this.size = count;
+        this.r = new int[count];
+        this.c = new int[count];
+        this.w = new int[count];
+        this.dInitial = new long[count];
+        this.dCurrent = new long[count];
+        int id = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (weights[i][j] > 0) {
+                    this.r[id] = i;
+                    this.c[id] = j;
+                    this.w[id] = weights[i][j];
+                    this.dInitial[id] = durabilities[i][j];
+                    this.dCurrent[id] = durabilities[i][j]; // 最初は現在の耐久力も初期耐久力と同じ値です。
+                    id++;
+                }
+            }
         }
+    }
 
-        // 実際の移動による手持ちの箱へのダメージ計算と適用を行います。
-        long weightOnTop = 0; // 手持ちスタックの一番上にある箱の重さ（その下の箱に加わる荷重）
-        // シミュレーション時と同様に、手持ちスタックの底から順に実際のダメージを適用します。
-        for (int i = this.hand.size() - 1; i >= 0; i--) {
-            Box box = this.hand.get(i); // 手に持っている箱（実際のオブジェクト）
-            box.d_current -= weightOnTop * moveDist; // ダメージ計算し、現在の耐久力を更新します。
-            
-            // isPlanFeasibleメソッドが正しく機能していれば、ここで箱が潰れることは原理的にないはずです。
-            // もしここに入った場合、何らかのロジックエラーや予期せぬ状態が発生している可能性が高いため、エラー警告を出力します。
-            if (box.d_current <= 0) {
-                System.err.println("Error: Box " + box.id + " crushed during actual movement!");
-                // 実際の問題ではここでプログラムを終了するか、追加のハンドリングが必要になる場合があります。
+    /** 箱idのマスから(0,0)までのマンハッタン距離を返します。 */
+    int distToOrigin(int id) {
+        return this.r[id] + this.c[id];
+    }
+}
+
+/**
+ * 箱の位置・重さ・耐久力だけから、総移動回数（TripPlan.totalMoves()）の下限を求めるクラス。
+ * 探索の結果がどれだけ最適に近いか（ギャップ）を見積もり、十分に近ければ改善を早めに打ち切るために使います。
+ *
+ * 考え方は次の2つの緩和の組み合わせです。
+ * <ul>
+ *   <li>往復距離: (0,0)から距離x以上のマスの箱を含むトリップは、少なくとも2x回移動します。
+ *       したがって総移動回数は、距離1, 2, ...のそれぞれについて「距離x以上まで行くトリップの数」を2倍して足したもの以上です。</li>
+ *   <li>容量: 箱jを拾った後は(0,0)まで少なくともdist(j)回移動するので、手の一番下の箱は
+ *       上に載る各箱jから合計で少なくとも w(j) × dist(j) のダメージを受けます。一番下の箱bが潰れないためには
+ *       その合計が d(b) - 1 以下でなければならず、1つのトリップの箱の「負荷」w × distの合計は
+ *       一番下の箱の「容量」d(b) + w(b) × dist(b) - 1 を超えられません。一番下の箱はトリップごとに異なるので、
+ *       距離x以上まで行くトリップの数は、容量の大きい順にその数だけ足して距離x以上の箱の負荷の合計に届く数以上です。</li>
+ * </ul>
+ * 中継（置く操作）を使わない計画についての下限です。中継した箱は元のマスより近くから運ばれることがあるので、
+ * 中継を使った計画の総移動回数はこれを下回ることがあります。
+ */
+final class LowerBound {
+    private static final int CAPACITY_BUCKETS = 1 << 12; // 容量の分布を数えるバケットの数
+
+    private LowerBound() {
+    }
+
+    /**
+     * 中継を使わない任意の計画の総移動回数の下限を返します。計算量は箱の数に比例します。
+     * @param boxes 箱の属性テーブル（初期耐久力だけを使います）
+     * @return 総移動回数の下限（箱がなければ0）
+     */
+    static long moves(BoxTable boxes) {
+        int size = boxes.size;
+        if (size == 0) return 0;
+        int maxDist = 0;
+        long maxCapacity = 0;
+        for (int id = 0; id < size; id++) {
+            maxDist = Math.max(maxDist, boxes.distToOrigin(id));
+            maxCapacity = Math.max(maxCapacity, capacity(boxes, id));
+        }
+        // 距離ごとの負荷の合計と、容量の分布を求めます。容量は整列する代わりに等幅のバケットに数え、
+        // バケットの上端の値として扱います（容量を大きめに見積もるだけなので、下限としては正しいままです）。
+        long[] load = new long[maxDist + 1];
+        long width = maxCapacity / CAPACITY_BUCKETS + 1;
+        int[] count = new int[CAPACITY_BUCKETS];
+        for (int id = 0; id < size; id++) {
+            int dist = boxes.distToOrigin(id);
+            load[dist] += (long) boxes.w[id] * dist;
+            count[(int) (capacity(boxes, id) / width)]++;
+        }
+
+        // 遠い方から負荷を累積し、それを賄うのに必要な一番下の箱の数（＝トリップの数）を、容量の大きい箱から数えます。
+        // 距離が近くなるほど累積の負荷は増えるだけなので、使う容量の数も単調に増やしていけば足ります。
+        long bound = 0;
+        long suffix = 0;                     // 距離x以上の箱の負荷の合計
+        long covered = 0;                    // これまでに使った容量の合計
+        long trips = 0;                      // これまでに使った容量の数
+        int bucket = CAPACITY_BUCKETS - 1;   // 次に使う容量のバケット
+        for (int x = maxDist; x >= 1; x--) {
+            suffix += load[x];
+            // 距離x以上の箱があれば、そこまで行くトリップは少なくとも1つ必要です。
+            while (trips < size && (trips == 0 || covered < suffix)) {
+                while (count[bucket] == 0) bucket--;
+                long edge = (bucket + 1) * width - 1;
+                long take = Math.min(count[bucket], Math.max(1, (suffix - covered + edge - 1) / edge));
+                count[bucket] -= take;
+                covered += take * edge;
+                trips += take;
             }
-            weightOnTop += box.w; // 次の箱のダメージ計算のために、現在の箱の重さを加算します。
+            bound += 2 * trips;
         }
-        // 社長の現在位置を、移動先の座標に更新します。
-        this.px = tr;
-        this.py = tc;
+        return bound;
+    }
+
+    /** 箱idを一番下にしたトリップに載せられる負荷の合計の上限（d + w × dist - 1）を返します。 */
+    private static long capacity(BoxTable boxes, int id) {
+        return boxes.dInitial[id] + (long) boxes.w[id] * boxes.distToOrigin(id) - 1;
     }
 
     /**
-     * 社長が現在いるマスにある箱を拾い上げる操作を行い、
-     * その箱を手持ちのスタックに追加し、対応するコマンドを記録します。
-     * @param box 拾う対象のBoxオブジェクト
+     * 総移動回数movesの解の、下限lowerBoundに対するギャップ（movesのうち下限を超えている割合）を返します。
+     * @return (moves - lowerBound) / moves。movesが0なら0
+     */
+    static double gap(long moves, long lowerBound) {
+        return moves <= 0 ? 0 : (double) (moves - lowerBound) / moves;
+    }
+}
+
+/**
+ * ダンボール運搬問題の解決ロジックを実装する主要なクラス。
+ * 高橋社長の移動、箱のピックアップ、最適な輸送計画の策定、およびその計画のシミュレーションを行います。
+ */
+class Solver {
+    final int N;             // グリッドの一辺のサイズ (例: 20x20グリッドの場合、N=20)
+    int px, py;              // 高橋社長の現在位置の行座標 (px) と列座標 (py)
+    int[] hand;              // 高橋社長が現在手に持っている箱のIDのスタック
+    int handSize;            // (hand[handSize-1] が一番上に積まれた箱)。
+    final ActionLog actions; // 高橋社長の全ての操作コマンド（例: U, D, L, R, 1）をランレングス符号で記録する列。
+                             // 最後にまとめて標準出力に書き出されます。
+    final BoxTable boxes;    // 全ての箱の属性を、IDを添字とするプリミティブ配列で管理するテーブル。
+
+    // グリッドの状態を保持する2次元配列。
+    // 各マスに箱がある場合はその箱のIDを、箱がない場合は-1を格納します。
+    // 社長が箱を拾うと、該当するマスの値は-1に更新されます。
+    private int[][] grid; 
+
+    // 評価関数・乱数シード・改善フェーズの打ち切り時刻などの設定。
+    private final SolverConfig config;
+    // これまでに記録した操作コマンドの数
+    private long operationCount;
+    // solve()で求めた総移動回数の下限と、最終的な計画の総移動回数
+    private long lowerBound;
+    private long plannedMoves;
+    // 最終的な計画のうち、1箱だけを運ぶトリップの数
+    private int singleTrips;
+    // ギャップの目標（config.gapTarget）に届いて、制限時間より前に改善を打ち切ったかどうか
+    private boolean stoppedAtGap;
+    // 拾う順序の最適化に使う作業用の表。最初に使うときに作り、以降のsolve()でも使い回します。
+    private TripOrderOptimizer tripOrder;
+    // 複数のSolverで順に使い回す作業領域（なければnull）
+    private final SolverWorkspace workspace;
+
+    /**
+     * Solverクラスのコンストラクタ。
+     * 問題の初期状態（グリッドサイズ、箱の重さ、耐久力）を設定し、
+     * 全ての箱をBoxTableに登録して管理します。
+     * @param n グリッドのサイズ
+     * @param weights 各マスの箱の重さを表す2次元配列
+     * @param durabilities 各マスの箱の耐久力を表す2次元配列
      */
-    private void pick(Box box) {
-        this.hand.add(box);         // 拾った箱を手持ちスタックの最上部に追加します。
-        this.actions.append("1\n"); // 操作1（箱を拾う）のコマンドをactionsに記録します。
+    public Solver(int n, int[][] weights, int[][] durabilities) {
+        this(n, weights, durabilities, 0); // 制限時間0は、貪欲法の結果をそのまま使うことを意味します。
     }
-}
\ No newline at end of file
+
+    /**
+     * 改善フェーズの制限時間を指定するコンストラクタ。
+     * @param n グリッドのサイズ
+     * @param weights 各マスの箱の重さを表す2次元配列
+     * @param durabilities 各マスの箱の耐久力を表す2次元配列
+     * @param timeLimitMillis 貪欲法の後に焼きなまし法で改善を続ける時間（ミリ秒）。この時点から数えます。
+     */
+    public Solver(int n, int[][] weights, int[][] durabilities, long timeLimitMillis) {
+        this(n, weights, durabilities, SolverConfig.withTimeLimit(timeLimitMillis));
+    }
+
+    /**
+     * 評価関数や乱数シードなどの設定を指定するコンストラクタ。
+     * 入力の配列は読み取るだけなので、複数のSolverで共有しても構いません。
+     * @param n グリッドのサイズ
+     * @param weights 各マスの箱の重さを表す2次元配列
+     * @param durabilities 各マスの箱の耐久力を表す2次元配列
+     * @param config このSolverの設定
+     */
+    public Solver(int n, int[][] weights, int[][] durabilities, SolverConfig config) {
+        this(n, weights, durabilities, config, null);
+    }
+
+    /**
+     * 作業領域を使い回すコンストラクタ。同じスレッドで次々にインスタンスを解くとき（SolverServerのワーカーなど）に使います。
+     * 操作コマンドの列（actions）は作業領域のものを空にして使うので、次にこの作業領域でSolverを作るまでに読み終えてください。
+     * @param n グリッドのサイズ
+     * @param weights 各マスの箱の重さを表す2次元配列
+     * @param durabilities 各マスの箱の耐久力を表す2次元配列
+     * @param config このSolverの設定
+     * @param workspace 使い回す作業領域（nullなら全て新しく確保します）
+     */
+    Solver(int n, int[][] weights, int[][] durabilities, SolverConfig config, SolverWorkspace workspace) {
+        this.config = config;
+        this.workspace = workspace;
+        this.N = n;
+        this.px = 0; // 社長の初期位置は常に(0,0)です。
+        this.py = 0;
+        this.actions = workspace != null ? workspace.actions() : new ActionLog(); // アクション記録用の列を初期化
+        this.boxes = new BoxTable(n, weights, durabilities); // 箱の属性テーブルを構築
+        this.hand = new int[this.boxes.size]; // 手持ちスタックは最大で全ての箱を積める大きさを確保
+        this.handSize = 0;
+        this.grid = new int[N][N]; // グリッド状態管理用の配列を初期化
+
+        // グリッドの各マスに箱のIDを記録します。BoxTableと同じく行優先で数えるので、IDは一致します。
+        for (int i = 0; i < n; i++) {
+            java.util.Arrays.fill(this.grid[i], -1); // 箱がないマスは-1でマークします。
+        }
+        for (int id = 0; id < this.boxes.size; id++) {
+            this.grid[this.boxes.r[id]][this.boxes.c[id]] = id;
+        }
+    }
+
+    /**
+     * 問題解決の全プロセスを実行します。
+     * まず貪欲法で輸送サイクル（トリップ）の一覧を作り、制限時間が残っていれば焼きなまし法で改善してから、
+     * 最終的なトリップの一覧どおりに社長を動かして操作コマンドをactionsに記録します。
+     * 記録した操作コマンドの出力は呼び出し側（Main.main）が行います。
+     */
+    public void solve() {
+        solve(null);
+    }
+
+    /**
+     * 与えたトリップの一覧（以前の出力から作ったものなど）を初期解にして、solve()と同じ改善と記録を行います。
+     * @param initial 初期解（このSolverと同じインスタンスの箱IDによるもの。書き換えずにコピーして使います）。nullなら貪欲法で作ります
+     */
+    public void solve(TripPlan initial) {
+        SolveEvent event = new SolveEvent();
+        event.begin();
+        Stats.Span span = Stats.begin(Stats.Phase.PLAN);
+        this.lowerBound = LowerBound.moves(this.boxes);
+        TripPlan plan = initial != null ? new TripPlan(initial) : buildGreedyPlan();
+        span.end();
+        event.greedyMoves = plan.totalMoves();
+        // 下限に対するギャップの目標があれば、それを満たす総移動回数に届いた時点で改善を打ち切ります。
+        long targetMoves = this.config.gapTarget > 0
+                ? (long) Math.floor(this.lowerBound / (1 - Math.min(this.config.gapTarget, 0.99)))
+                : 0;
+        // 制限時間が残っている限り、トリップ間で箱を移したり順序を入れ替えたりして総移動回数を減らします。
+        long now = System.nanoTime();
+        if (now < this.config.deadlineNanos) {
+            // 残り時間の一部を、トリップ内の順序の最適化と（使う場合は）中継の探索に取っておきます。
+            long remaining = this.config.deadlineNanos - now;
+            long orderDeadline = this.config.staging
+                    ? this.config.deadlineNanos - (long) (remaining * SolverConfig.STAGING_TIME_SHARE)
+                    : this.config.deadlineNanos;
+            long annealDeadline = orderDeadline - (long) (remaining * SolverConfig.ORDER_TIME_SHARE);
+            TripAnnealer annealer = new TripAnnealer(this.boxes, plan, this.config.seed);
+            annealer.targetMoves = targetMoves;
+            if (this.boxes.size > SolverConfig.ANNEAL_MAX_BOXES) {
+                annealer.startTemp = 0; // 大きなインスタンスでは改善する近傍だけを受理します。
+                annealer.endTemp = 0;
+            }
+            span = Stats.begin(Stats.Phase.ANNEAL);
+            annealer.run(annealDeadline);
+            span.end();
+            event.annealIterations = annealer.iterations;
+            if (Stats.ENABLED) {
+                Stats.annealIterations.add(annealer.iterations);
+                Stats.annealAccepted.add(annealer.accepted);
+            }
+            span = Stats.begin(Stats.Phase.REORDER);
+            reorderTrips(plan, orderDeadline);
+            span.end();
+            // 中継を使った後はトリップの順序に依存するので、焼きなまし法の後に行います。
+            // 焼きなまし法がギャップの目標に届いて打ち切った場合は、残り時間を使う中継の探索も行いません。
+            this.stoppedAtGap = annealer.reachedTarget;
+            if (this.config.staging && !this.stoppedAtGap) {
+                span = Stats.begin(Stats.Phase.STAGING);
+                StagingOptimizer staging = new StagingOptimizer(this.N, this.boxes, plan);
+                staging.run(this.config.deadlineNanos);
+                span.end();
+                if (Stats.ENABLED) Stats.recordStaging(staging);
+            }
+        }
+        span = Stats.begin(Stats.Phase.EMIT);
+        executePlan(plan);
+        span.end();
+        this.plannedMoves = plan.totalMoves();
+        this.singleTrips = 0;
+        for (int t = 0; t < plan.count; t++) if (plan.len[t] == 1) this.singleTrips++;
+        event.n = this.N;
+        event.seed = this.config.seed;
+        event.trips = plan.count;
+        event.moves = this.plannedMoves;
+        event.lowerBound = this.lowerBound;
+        event.gap = LowerBound.gap(this.plannedMoves, this.lowerBound);
+        event.stoppedAtGap = this.stoppedAtGap;
+        event.operations = this.operationCount;
+        event.commit();
+    }
+
+    /**
+     * 各トリップの拾う順序をTripOrderOptimizerで最適化し直します。制限時刻になったら残りのトリップはそのままにします。
+     * @param plan 最適化するトリップの一覧（その場で書き換えます）
+     * @param deadlineNanos 打ち切る時刻（System.nanoTime()基準）
+     */
+    void reorderTrips(TripPlan plan, long deadlineNanos) {
+        if (this.tripOrder == null) {
+            this.tripOrder = this.workspace != null ? this.workspace.tripOrder(this.boxes, this.config.exactOrderLimit)
+                    : new TripOrderOptimizer(this.boxes, this.config.exactOrderLimit);
+        }
+        TripOrderOptimizer optimizer = this.tripOrder;
+        optimizer.resetCounts();
+        for (int t = 0; t < plan.count; t++) {
+            if ((t & 15) == 0 && System.nanoTime() >= deadlineNanos) break;
+            int cost = optimizer.optimize(plan.trips[t], plan.len[t]);
+            if (cost >= 0) plan.cost[t] = cost;
+        }
+        if (Stats.ENABLED) Stats.recordTripOrder(optimizer);
+    }
+
+    /** solve()で記録した操作コマンドの数（移動と箱の操作の合計。これが少ないほど良い解です）を返します。 */
+    public long operationCount() {
+        return this.operationCount;
+    }
+
+    /** solve()で求めた、中継を使わない計画の総移動回数の下限（LowerBound.moves()）を返します。 */
+    public long lowerBound() {
+        return this.lowerBound;
+    }
+
+    /** solve()の最終的な計画の総移動回数を返します。 */
+    public long plannedMoves() {
+        return this.plannedMoves;
+    }
+
+    /** solve()の最終的な計画のうち、1箱だけを運ぶトリップの数を返します。 */
+    public int singleTrips() {
+        return this.singleTrips;
+    }
+
+    /** solve()の最終的な計画の総移動回数の、下限に対するギャップ（LowerBound.gap()）を返します。 */
+    public double gap() {
+        return LowerBound.gap(this.plannedMoves, this.lowerBound);
+    }
+
+    /** solve()の焼きなまし法がギャップの目標に届いて、制限時間より前に改善を打ち切ったかどうかを返します。 */
+    public boolean stoppedAtGap() {
+        return this.stoppedAtGap;
+    }
+
+    /**
+     * 未輸送の箱がなくなるまで、一連の輸送サイクルを貪欲に計画します。
+     * グリッドが小さいうちは全体を1つの領域として計画します。大きなグリッドでは、グリッドを一辺config.sectorSizeの
+     * 正方形のセクタに分け、各セクタの箱だけを運ぶトリップをセクタごとに独立して（並列に）計画します。
+     * どのトリップも(0,0)から出発して(0,0)へ戻るので、セクタごとの計画はそのまま連結できます。
+     * このメソッドは計画を立てるだけで、社長の移動や操作コマンドの記録は行いません。
+     * 設定の評価関数で計画するのは改善フェーズの時間のうちPLAN_TIME_SHAREまでで、セクタに分けた場合はそれを
+     * まだ計画していないセクタで箱の数に比例して分け合います。自分の持ち時間を使い切ったセクタは、残りの箱を候補を絞った近い順の
+     * 貪欲法で計画します。近い順の貪欲法も改善フェーズの残り時間を同じ比率で分け合い、それも使い切ったら残りの箱は位置の順に
+     * なめて計画します（GreedyPlanner.sweepRemaining()）。
+     * @return 計画された全てのトリップ
+     */
+    TripPlan buildGreedyPlan() {
+        // 改善フェーズの時間が残っていれば、計画もその時間の一部で終え、残りを焼きなまし法に回します。
+        // 制限時間0（貪欲法の結果をそのまま使う）のときは、計画を最後まで行います。
+        long now = System.nanoTime();
+        boolean timed = this.config.deadlineNanos > now;
+        long hardDeadline = timed ? this.config.deadlineNanos : Long.MAX_VALUE;
+        long planDeadline = timed ? now + (long) ((this.config.deadlineNanos - now) * SolverConfig.PLAN_TIME_SHARE) : Long.MAX_VALUE;
+        int sectorSize = this.config.sectorSize > 0 ? this.config.sectorSize
+                : (this.N <= SolverConfig.AUTO_SECTOR_MIN_N ? this.N : SolverConfig.DEFAULT_SECTOR_SIZE);
+        if (sectorSize >= this.N) {
+            // グリッド全体を1つの領域として計画します。
+            int[] all = new int[this.boxes.size];
+            for (int id = 0; id < all.length; id++) all[id] = id;
+            TripPlan plan = new TripPlan(this.boxes.size);
+            GreedyPlanner planner = new GreedyPlanner(this.boxes, all, 0, 0, this.N, this.N, this.config, this.config.seed);
+            planner.deadlineNanos = planDeadline;
+            planner.hardDeadlineNanos = hardDeadline;
+            planner.plan(plan);
+            return plan;
+        }
+
+        // 箱をセクタごとに振り分けます（セクタ番号順、各セクタ内はID順）。
+        int perSide = (this.N + sectorSize - 1) / sectorSize;
+        int sectors = perSide * perSide;
+        int[] sectorOf = new int[this.boxes.size];
+        int[] sectorCount = new int[sectors];
+        for (int id = 0; id < this.boxes.size; id++) {
+            sectorOf[id] = (this.boxes.r[id] / sectorSize) * perSide + this.boxes.c[id] / sectorSize;
+            sectorCount[sectorOf[id]]++;
+        }
+        int[][] sectorIds = new int[sectors][];
+        for (int sct = 0; sct < sectors; sct++) sectorIds[sct] = new int[sectorCount[sct]];
+        int[] filled = new int[sectors];
+        for (int id = 0; id < this.boxes.size; id++) {
+            sectorIds[sectorOf[id]][filled[sectorOf[id]]++] = id;
+        }
+
+        // 各セクタを独立に計画します。乱数のシードはセクタごとに変えるので、並列に実行しても結果は決定的です
+        // （ただし時間で近い順の貪欲法に切り替えた場合は、切り替えた時点によって結果が変わります）。
+        // 各セクタの持ち時間は、計画を始める時点で残っている時間を、まだ始めていないセクタの箱の数に対するこのセクタの箱の数の
+        // 割合（にワーカーの数を掛けたもの、1以下）で割り振ります。箱の多いセクタほど長い時間を受け取ります。
+        // 近い順の貪欲法の持ち時間は、まだ始めていないセクタの箱を全てなめて計画する時間を残りから除いてから割り振るので、
+        // 最後のセクタまで近い順の貪欲法を使い切っても、計画は改善フェーズの打ち切り時刻までに終わります。
+        TripPlan[] parts = new TripPlan[sectors];
+        int workers = Math.max(1, Math.min(sectors, Runtime.getRuntime().availableProcessors()));
+        java.util.concurrent.atomic.AtomicLong boxesLeft = new java.util.concurrent.atomic.AtomicLong(this.boxes.size);
+        java.util.stream.IntStream.range(0, sectors).parallel().forEach(sct -> {
+            long pending = boxesLeft.getAndAdd(-sectorIds[sct].length); // このセクタを含む、まだ計画を始めていないセクタの箱の数
+            double share = Math.min(1.0, (double) workers * sectorIds[sct].length / Math.max(1, pending));
+            long start = System.nanoTime();
+            long sliceDeadline = planDeadline == Long.MAX_VALUE ? Long.MAX_VALUE
+                    : start + (long) (Math.max(0, planDeadline - start) * share);
+            long sweepReserve = pending * SolverConfig.SWEEP_NANOS_PER_BOX / workers;
+            long sliceHardDeadline = hardDeadline == Long.MAX_VALUE ? Long.MAX_VALUE
+                    : start + (long) (Math.max(0, hardDeadline - start - sweepReserve) * share);
+            int top = (sct / perSide) * sectorSize;
+            int left = (sct % perSide) * sectorSize;
+            int height = Math.min(sectorSize, this.N - top);
+            int width = Math.min(sectorSize, this.N - left);
+            TripPlan part = new TripPlan(sectorIds[sct].length);
+            GreedyPlanner planner = new GreedyPlanner(this.boxes, sectorIds[sct], top, left, height, width, this.config,
+                                                      this.config.seed + 0x632BE59BD9B4E019L * (sct + 1));
+            planner.deadlineNanos = Math.min(sliceDeadline, sliceHardDeadline);
+            planner.hardDeadlineNanos = sliceHardDeadline;
+            planner.plan(part);
+            parts[sct] = part;
+        });
+
+        // セクタごとの計画を1つのトリップ一覧に連結します。
+        TripPlan plan = new TripPlan(this.boxes.size);
+        for (TripPlan part : parts) plan.moveFrom(part);
+        return plan;
+    }
+
+    /**
+     * 計画されたトリップを順に実行し、社長の移動・箱のピックアップと操作コマンドの記録を行います。
+     * 各トリップは(0,0)から出発して箱を順に拾い、最後に(0,0)へ帰還します。
+     * 中継つきの箱は、中継地点にスタックの一番上の箱を置いてから拾い、中継地点へ戻って置いた箱を拾い直します。
+     * @param plan 実行するトリップの一覧
+     */
+    void executePlan(TripPlan plan) {
+        for (int t = 0; t < plan.count; t++) {
+            // 各輸送サイクルの開始時、社長は必ず(0,0)にいて、手は空である状態にします。
+            this.moveTo(0, 0); // 現在位置から(0,0)へ移動し、その間のダメージを計算・適用
+            this.handSize = 0; // 手持ちの箱を全て降ろします（スタックを空にする）
+            for (int k = 0; k < plan.len[t]; k++) {
+                int boxId = plan.trips[t][k]; // 運ぶ箱のID
+                int stageId = plan.stageAt(t, k);
+                int parked = -1; // 中継地点に置いた箱のID
+                if (stageId >= 0) {
+                    // 中継地点（既に空になったマス）へ行き、スタックの一番上の箱を置きます。
+                    this.moveTo(this.boxes.r[stageId], this.boxes.c[stageId]);
+                    parked = this.place();
+                }
+                this.moveTo(this.boxes.r[boxId], this.boxes.c[boxId]); // 社長を箱の場所へ移動させ、移動コマンドを記録し、手持ちの箱にダメージを適用します。
+                this.pick(boxId);           // 箱を拾い上げ、手持ちに追加し、ピックアップコマンドを記録します。
+                this.grid[this.boxes.r[boxId]][this.boxes.c[boxId]] = -1; // 拾った箱の場所は空になるため、グリッドの状態を更新します。
+                if (parked >= 0) {
+                    // 中継地点へ戻り、置いておいた箱を拾い直して一番上に戻します。
+                    this.moveTo(this.boxes.r[stageId], this.boxes.c[stageId]);
+                    this.pick(parked);
+                    this.grid[this.px][this.py] = -1;
+                }
+            }
+            this.moveTo(0, 0); // 全ての計画された箱を拾い終えたら、最終的に(0,0)の原点へ帰還します。
+        }
+        this.handSize = 0;
+    }
+
+    /**
+     * 指定された座標へ高橋社長を移動させ、その間の操作コマンドを記録し、
+     * 手持ちの箱に移動によるダメージを適用します。
+     * このメソッドは実際の移動とダメージ計算を行います。
+     * @param tr 移動先の行座標
+     * @param tc 移動先の列座標
+     */
+    private void moveTo(int tr, int tc) {
+        int dr = tr - this.px; // 行方向の移動量 (正なら下、負なら上)
+        int dc = tc - this.py; // 列方向の移動量 (正なら右、負なら左)
+
+        int moveDist = Math.abs(dr) + Math.abs(dc); // マンハッタン距離による移動総距離
+        if (moveDist == 0) return; // 移動距離が0の場合、何もする必要がないので処理を終了します。
+
+        // 移動コマンドを actions に追加します。同じ方向の移動は1つのランにまとめて記録されます。
+        // U, D, L, R の順序は任意ですが、ここでは縦移動を先に、次に横移動を行います。
+        if (dr > 0) { // 下方向へ移動する場合
+            this.actions.append('D', dr); // Dコマンドをdr回追加
+        } else { // 上方向へ移動する場合 (drが負の値なので-drで回数を計算)
+            this.actions.append('U', -dr); // Uコマンドを-dr回追加
+        }
+        this.operationCount += moveDist; // 移動コマンドは1マスにつき1回です。
+
+        if (dc > 0) { // 右方向へ移動する場合
+            this.actions.append('R', dc); // Rコマンドをdc回追加
+        } else { // 左方向へ移動する場合 (dcが負の値なので-dcで回数を計算)
+            this.actions.append('L', -dc); // Lコマンドを-dc回追加
+        }
+
+        // 実際の移動による手持ちの箱へのダメージ計算と適用を行います。
+        long weightOnTop = 0; // 手持ちスタックの一番上にある箱の重さ（その下の箱に加わる荷重）
+        // シミュレーション時と同様に、手持ちスタックの底から順に実際のダメージを適用します。
+        for (int i = this.handSize - 1; i >= 0; i--) {
+            int id = this.hand[i]; // 手に持っている箱のID
+            this.boxes.dCurrent[id] -= weightOnTop * moveDist; // ダメージ計算し、現在の耐久力を更新します。
+            
+            // 計画時の判定（TripState）が正しく機能していれば、ここで箱が潰れることは原理的にないはずです。
+            // もしここに入った場合、何らかのロジックエラーや予期せぬ状態が発生している可能性が高いため、エラー警告を出力します。
+            if (this.boxes.dCurrent[id] <= 0) {
+                System.err.println("Error: Box " + id + " crushed during actual movement!");
+                // 実際の問題ではここでプログラムを終了するか、追加のハンドリングが必要になる場合があります。
+            }
+            weightOnTop += this.boxes.w[id]; // 次の箱のダメージ計算のために、現在の箱の重さを加算します。
+        }
+        // 社長の現在位置を、移動先の座標に更新します。
+        this.px = tr;
+        this.py = tc;
+    }
+
+    /**
+     * 社長が現在いるマスにある箱を拾い上げる操作を行い、
+     * その箱を手持ちのスタックに追加し、対応するコマンドを記録します。
+     * @param boxId 拾う対象の箱のID
+     */
+    private void pick(int boxId) {
+        this.hand[this.handSize++] = boxId; // 拾った箱を手持ちスタックの最上部に追加します。
+        this.actions.append('1'); // 操作1（箱を拾う）のコマンドをactionsに記録します。
+        this.operationCount++;
+    }
+
+    /**
+     * 手持ちのスタックの一番上の箱を、社長が現在いるマスに置きます。
+     * 計画（StagingOptimizer）が空のマスだけを中継地点に選ぶので、ここでは空であることを前提にします。
+     * @return 置いた箱のID
+     */
+    private int place() {
+        int boxId = this.hand[--this.handSize]; // 一番上の箱をスタックから取り除きます。
+        if (this.grid[this.px][this.py] >= 0) {
+            System.err.println("Error: Box " + boxId + " placed on an occupied cell!");
+        }
+        this.grid[this.px][this.py] = boxId;
+        this.actions.append('2'); // 操作2（箱を置く）のコマンドをactionsに記録します。
+        this.operationCount++;
+        return boxId;
+    }
+}
+
+/**
+ * グリッドの長方形の領域（全体またはセクタ）にある箱について、輸送サイクルを貪欲法で計画するクラス。
+ * 領域ごとに自分専用のトリップ状態・空間インデックス・乱数を持つので、異なる領域のプランナーは並列に実行できます。
+ * 箱の属性テーブル（BoxTable）は読み取るだけなので共有します。
+ */
+class GreedyPlanner {
+    private final BoxTable boxes;
+    private final int[] ids;               // 担当領域の箱ID
+    private final SolverConfig config;     // 評価関数などの設定
+    // 輸送サイクル中の計画に対応するスタック状態。候補の追加判定と確定に使います。
+    private final TripState trip;
+    // 未輸送の箱を位置から引くための空間インデックス。候補を近い順に列挙するのに使います。
+    private final CandidateIndex index;
+    // 評価値に揺らぎを加えるための乱数の状態（config.jitterが0なら使いません）。
+    private long rng;
+
+    // --- ビームサーチ用（config.beamWidthが2以上のときだけ確保します） ---
+    private int activeWidth;              // 現在のビーム幅。計画が時間内に終わりそうになければ狭めていき、1になると貪欲法に戻ります。
+    private final long beamDeadlineNanos; // ビームサーチで計画を終えたい時刻
+    private TripState[] beam, nextBeam;   // 各深さで残す部分トリップ。深さごとに入れ替えて使い回します。
+    private long[] beamHash, nextHash;    // 各部分トリップの箱の集合のハッシュ（箱ごとの乱数のXOR）
+    private int[] beamMoves, nextMoves;   // (0,0)から最後に拾った箱までの移動距離
+    private double[] beamScore;           // 各部分トリップの評価値（(0,0)に戻るまでの移動距離 / 積んだ箱の総重量）
+    private int[] childParent, childBox;  // 展開した子の、親の番号と追加する箱
+    private int[] childMoves;             // 展開した子の移動距離
+    private long[] childKey;              // 展開した子の並べ替えのキー（評価値を量子化した上位ビット + 子の番号）
+    private long[] seen;                  // 同じ（箱の集合, 最後の箱）の部分トリップを除くためのハッシュ表（0は空き）
+    private int[] candId;                 // 1つの部分トリップから展開する候補の箱（評価値の昇順）
+    private double[] candEval;            // 候補の評価値
+    private int[] bestSeq;                // これまでで最も良い、これ以上伸ばせない部分トリップ
+    private int bestLen;
+    private double bestScore;
+
+    // 計測用の計数。Stats.ENABLEDのときだけ数え、plan()の終わりにStatsへ足し込みます。
+    private long statChecks, statRejects, statSteps, statScanned;
+
+    // 設定の評価関数で計画する時刻の上限（System.nanoTime()基準）。これを過ぎたら、残りの箱は近い順の貪欲法で計画します。
+    long deadlineNanos = Long.MAX_VALUE;
+    // 候補を探して計画するのをやめる時刻。これを過ぎたら、残りの箱は位置の順になめる計画（sweepRemaining()）でまとめて計画します。
+    long hardDeadlineNanos = Long.MAX_VALUE;
+    private int evalMode;  // 現在の評価関数（近い順の貪欲法に切り替えるとEVAL_NEARESTになります）
+    private boolean fast;  // 近い順の貪欲法に切り替えたかどうか
+
+    /**
+     * @param boxes 箱の属性テーブル
+     * @param ids 担当領域の箱ID（全て領域内にあり、ID順＝行優先の順に並んでいること）
+     * @param top 領域の上端の行
+     * @param left 領域の左端の列
+     * @param height 領域の行数
+     * @param width 領域の列数
+     * @param config 評価関数などの設定
+     * @param seed 評価値の揺らぎに使う乱数のシード
+     */
+    GreedyPlanner(BoxTable boxes, int[] ids, int top, int left, int height, int width, SolverConfig config, long seed) {
+        this.boxes = boxes;
+        this.ids = ids;
+        this.config = config;
+        this.evalMode = config.evalMode;
+        this.rng = seed == 0 ? 88172645463325252L : seed;
+        this.trip = new TripState(boxes, ids.length);
+        this.index = new CandidateIndex(boxes, ids, top, left, height, width);
+        // ビームサーチで計画に使ってよいのは、改善フェーズの時間のうちBEAM_TIME_SHAREの割合までです。
+        long now = System.nanoTime();
+        this.beamDeadlineNanos = now + (long) (Math.max(0, config.deadlineNanos - now) * SolverConfig.BEAM_TIME_SHARE);
+        this.activeWidth = Math.min(config.beamWidth, SolverConfig.MAX_BEAM_WIDTH);
+        if (this.activeWidth > 1) {
+            int beamWidth = this.activeWidth;
+            int children = beamWidth * Math.max(beamWidth, SolverConfig.BEAM_EXPAND);
+            this.beam = new TripState[beamWidth];
+            this.nextBeam = new TripState[beamWidth];
+            for (int k = 0; k < beamWidth; k++) {
+                this.beam[k] = new TripState(boxes, ids.length);
+                this.nextBeam[k] = new TripState(boxes, ids.length);
+            }
+            this.beamHash = new long[beamWidth];
+            this.nextHash = new long[beamWidth];
+            this.beamMoves = new int[beamWidth];
+            this.nextMoves = new int[beamWidth];
+            this.beamScore = new double[beamWidth];
+            this.childParent = new int[children];
+            this.childBox = new int[children];
+            this.childMoves = new int[children];
+            this.childKey = new long[children];
+            this.seen = new long[Integer.highestOneBit(beamWidth * 4) * 2];
+            this.candId = new int[children];
+            this.candEval = new double[children];
+            this.bestSeq = new int[ids.length];
+        }
+    }
+
+    /**
+     * 候補の箱を評価します。値が小さいほど優先して計画に追加されます。
+     * どの式を使うかはconfig.evalModeで切り替え、config.jitterが正なら評価値に乱数の揺らぎを掛けて
+     * 同点や僅差の候補の選び方をSolverごとに変えます。
+     * SelfCheckは、selectNext()の選んだ箱をこの評価値による総当たりと比べます。
+     * @param boxId 候補の箱のID
+     * @param dist 現在の出発点から候補の箱までのマンハッタン距離
+     * @param fromR 現在の出発点の行座標
+     * @param fromC 現在の出発点の列座標
+     */
+    double evaluate(int boxId, int dist, int fromR, int fromC) {
+        double value;
+        switch (this.evalMode) {
+            case SolverConfig.EVAL_DETOUR_PER_WEIGHT:
+                // 「出発点から(0,0)へ直接帰る」場合と比べて、箱に寄り道することで増える距離を重さで割ります。
+                value = (double)(dist + this.boxes.distToOrigin(boxId) - (fromR + fromC)) / this.boxes.w[boxId];
+                break;
+            case SolverConfig.EVAL_NEAREST:
+                // 距離を優先し、同じ距離ならより重い箱を選びます。
+                value = dist + 1.0 / (1 + this.boxes.w[boxId]);
+                break;
+            default:
+                // (移動距離) / (箱の重さ)。元々の評価関数です。
+                value = (double)dist / this.boxes.w[boxId];
+                break;
+        }
+        if (this.config.jitter > 0) {
+            value *= 1.0 + this.config.jitter * nextDouble();
+        }
+        return value;
+    }
+
+    /**
+     * 出発点からの距離がd以上の箱について、evaluate()が返しうる評価値の下限を返します。
+     * 揺らぎ（config.jitter）は評価値を1倍以上にするだけなので、下限には影響しません。
+     * @param d 出発点からの距離
+     * @param fromR 出発点の行座標
+     * @param fromC 出発点の列座標
+     * @param maxWeight 残っている箱の重さの上限
+     */
+    private double lowerBound(int d, int fromR, int fromC, int maxWeight) {
+        switch (this.evalMode) {
+            case SolverConfig.EVAL_DETOUR_PER_WEIGHT:
+                // 三角不等式より、箱から(0,0)までの距離は d - (出発点から(0,0)までの距離) 以上です。
+                return Math.max(0, 2 * (d - (fromR + fromC))) / (double) maxWeight;
+            case SolverConfig.EVAL_NEAREST:
+                return d;
+            default:
+                return (double) d / maxWeight;
+        }
+    }
+
+    private double nextDouble() {
+        long x = this.rng;
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        this.rng = x;
+        return (x >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * 持ち時間を使い切ったので、残りの箱を近い順の貪欲法で計画するように切り替えます。
+     * 近い順の評価値は距離そのものなので、評価値の下限による打ち切りが最も早く効き、1つの候補を選ぶのに調べる箱が少なくて済みます。
+     * さらに1回の候補選びで潰れると判定した箱がFAST_REJECT_LIMIT個に達したら、そこでそのサイクルを終えます。
+     */
+    private void switchToFast() {
+        this.fast = true;
+        this.evalMode = SolverConfig.EVAL_NEAREST;
+        this.activeWidth = 1;
+    }
+
+    /**
+     * 現在のトリップ状態（this.trip）に、評価値の最も良い箱を1つずつ追加できなくなるまで積み上げます。
+     */
+    private void extendGreedily() {
+        // この内部ループでは、現在の輸送サイクルで一度に運べる最適な箱の組み合わせ（計画）を貪欲に構築します。
+        // (0,0)からスタートし、複数の箱を連続して拾う経路を想定します。
+        while (true) {
+            if (this.index.size() == 0) {
+                // 候補となる箱がもうない場合、このサイクルの計画構築は終了です。
+                break; 
+            }
+            // 計画の打ち切り時刻を過ぎたら、ここまでに積んだ箱でこのサイクルを終えます（途中までのトリップも実行可能です）。
+            // 持ち時間を過ぎただけなら、近い順の貪欲法に切り替えて続けます。
+            long now = System.nanoTime();
+            if (now >= this.hardDeadlineNanos) break;
+            if (!this.fast && now >= this.deadlineNanos) switchToFast();
+            if (Stats.ENABLED) this.statSteps++;
+
+            int bestNextBoxId = selectNext();
+            if (bestNextBoxId != -1) {
+                // 最も評価値の良かった箱が見つかった場合、それをこのサイクルの確定計画に追加します。
+                take(bestNextBoxId);
+            } else {
+                // 現在の状況で、安全に実行可能な追加の箱が見つからなかった場合、
+                // このサイクルの計画構築はこれ以上続けられないため、ループを終了します。
+                break; 
+            }
+        }
+    }
+
+    /**
+     * 現在のトリップ状態（this.trip）の末尾に追加できる箱のうち、評価値の最も良い箱（同じ評価値ならIDの小さい箱）を選びます。
+     * 空間インデックスを出発点から近いブロックの輪の順に調べ、評価値の下限・届く距離の上限（reachLimit()）・
+     * (0,0)からの距離の上限（homeLimit()）で、最良の箱になりえないブロックと箱を飛ばします。
+     * これらの打ち切りは、残っている全ての箱をevaluate()で比べた場合と同じ箱を選ぶためのものです
+     * （ただし近い順の貪欲法に切り替えた後は、潰れると判定した箱がFAST_REJECT_LIMIT個に達したところで打ち切ります）。
+     * @return 選んだ箱のID。追加できる箱がなければ-1
+     */
+    int selectNext() {
+        int bestNextBoxId = -1; // 今回のイテレーションで計画に追加する最適な箱のIDを初期化
+        // 評価値の最小値を保持。最初は可能な限り大きな値で初期化し、より良い（小さい）評価値が見つかれば更新します。
+        double min_eval_value = Double.MAX_VALUE; 
+
+        // 現在の計画において、最後に箱を拾った場所、または計画がまだ空の場合（最初の箱を探す場合）は社長の現在位置(0,0)
+        int current_r = this.trip.currentRow();
+        int current_c = this.trip.currentCol();
+        int rejects = 0; // 近い順の貪欲法で、この候補選びで潰れると判定した箱の数
+        
+        // 残っている候補箱を現在の出発点から近い順に調べ、現在の計画に追加可能かシミュレーションして評価します。
+        // 候補は「まだ輸送されていない箱のうち、計画に追加済みでない箱」（＝空間インデックスに残っている箱）で、
+        // 空間インデックス（グリッドを正方形のブロックに分けたバケット）を、出発点のブロックを中心とした
+        // ブロックの輪（チェビシェフ距離 k = 0, 1, 2, ...）の順に列挙します。
+        // 輪kのブロックにある箱は出発点から (k-1)×ブロックの一辺+1 以上離れているので、その距離での評価値の下限が
+        // 現在の最良値を上回った時点で、それより外側を調べても最良値は更新されないため、列挙を打ち切ります。
+        int maxWeight = this.index.maxWeight(); // 残っている箱の重さの上限（評価値の下限の計算に使います）
+        // 現在のスタックの残り耐久力から、追加できる可能性のある箱までの距離の上限も求めておき、その先は調べません。
+        int reach = this.trip.reachLimit();
+        // 同じく、追加できる可能性のある箱の(0,0)からの距離の上限を求め、領域の全ての箱がそれより遠ければこのサイクルを終えます。
+        int homeLimit = this.trip.homeLimit(this.index.minWeight());
+        if (homeLimit < this.index.minHome()) return -1;
+        // 出発点が担当領域の外にある場合（トリップの開始時の(0,0)など）は、領域に最も近いブロックを中心にし、
+        // 領域までの距離を輪の距離の下限に足します。
+        int blockSize = this.index.blockSize;
+        int centerBr = this.index.centerBlockRow(current_r), centerBc = this.index.centerBlockCol(current_c);
+        int outside = this.index.outsideDistance(current_r, current_c);
+        int maxRing = this.index.maxRingFrom(centerBr, centerBc);
+        scan:
+        for (int ring = 0; ring <= maxRing; ring++) {
+            int ringMinDist = Math.max(1, outside + (ring == 0 ? 0 : (ring - 1) * blockSize + 1));
+            if (ringMinDist > reach || lowerBound(ringMinDist, current_r, current_c, maxWeight) > min_eval_value) break;
+            for (int bi = centerBr - ring; bi <= centerBr + ring; bi++) {
+                if (bi < 0 || bi >= this.index.blockRows) continue;
+                // 輪の上下の辺は全てのブロック、それ以外の行は左右両端のブロックだけが輪に含まれます。
+                boolean edgeRow = Math.abs(bi - centerBr) == ring;
+                int step = (edgeRow || ring == 0) ? 1 : 2 * ring;
+                for (int bj = centerBc - ring; bj <= centerBc + ring; bj += step) {
+                    if (bj < 0 || bj >= this.index.blockCols) continue;
+                    int block = bi * this.index.blockCols + bj;
+                    int count = this.index.count(block);
+                    if (count == 0) continue; // 箱が残っていないブロックは飛ばします。
+                    int blockMinDist = this.index.minDistToBlock(block, current_r, current_c);
+                    if (blockMinDist > reach || this.index.minHomeOfBlock(block) > homeLimit
+                            || lowerBound(Math.max(1, blockMinDist), current_r, current_c, maxWeight) > min_eval_value) continue;
+                    if (Stats.ENABLED) this.statScanned += count;
+                    for (int k = 0; k < count; k++) {
+                        int boxId = this.index.boxInBlock(block, k);
+                        // 社長の現在の出発点から候補の箱までのマンハッタン距離を計算します。
+                        int dist = Math.abs(this.boxes.r[boxId] - current_r) + Math.abs(this.boxes.c[boxId] - current_c);
+                        if (dist > reach || this.boxes.distToOrigin(boxId) > homeLimit
+                                || lowerBound(dist, current_r, current_c, maxWeight) > min_eval_value) continue;
+
+                        // 候補の箱を現在の計画の末尾に加えても、箱が潰れることなく(0,0)まで帰れるかをチェックします。
+                        // トリップ状態はスタックの深さ分だけを調べるので、計画全体の再シミュレーションやコピーは発生しません。
+                        boolean feasible = this.trip.canAppend(boxId);
+                        if (Stats.ENABLED) {
+                            this.statChecks++;
+                            if (!feasible) this.statRejects++;
+                        }
+                        if (!feasible && this.fast && ++rejects >= SolverConfig.FAST_REJECT_LIMIT) break scan;
+                        if (feasible) {
+                            // ★重要: 評価関数の計算★
+                            // (移動距離) / (箱の重さ) を評価値とします。
+                            // この値が小さいほど「効率が良い」と判断します。
+                            // 例: 同じ移動距離なら、より重い箱を優先します（分母が大きいほど評価値が小さくなる）。
+                            // 例: 同じ重さなら、より近い箱を優先します（分子が小さいほど評価値が小さくなる）。
+                            // ※問題の制約上、箱の重さが0のケースは存在しないため、0除算の心配はありません。
+                            // 評価関数はSolverConfigで切り替えられます（evaluate()を参照）。
+                            double current_eval_value = evaluate(boxId, dist, current_r, current_c); 
+
+                            // 現在までに見つかった最も良い評価値 (min_eval_value) と比較し、
+                            // より良い（小さい）評価値であれば、それを最良の候補として更新します。
+                            // 同じ評価値ならIDの小さい箱を選び、列挙順によらず同じ結果になるようにします。
+                            if (current_eval_value < min_eval_value
+                                    || (current_eval_value == min_eval_value && boxId < bestNextBoxId)) {
+                                min_eval_value = current_eval_value;
+                                bestNextBoxId = boxId; // 最も評価値の良かった箱のIDを記録
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return bestNextBoxId;
+    }
+
+    /** 箱idをトリップ状態（this.trip）のスタックに積み上げ、候補（空間インデックス）から外します。 */
+    void take(int id) {
+        this.trip.commit(id);
+        this.index.remove(id);
+    }
+
+    /** 計画中のトリップ状態を返します。 */
+    TripState trip() {
+        return this.trip;
+    }
+
+    /**
+     * ビームサーチで、このサイクルで運ぶ箱の組み合わせを構築し、this.tripに積んで空間インデックスから取り除きます。
+     * 各深さで評価値（(0,0)に戻るまでの移動距離 / 積んだ箱の総重量、小さいほど良い）の良い部分トリップを最大activeWidth個残し、
+     * それぞれから評価値の良い候補を最大BEAM_EXPAND個ずつ展開します。箱の集合と最後の箱が同じ部分トリップは、
+     * 残り耐久力が違っても以降の展開がほぼ同じになるので、評価値の良い方だけを残します。
+     * 貪欲法と同じく、これ以上箱を追加できなくなった部分トリップの中から、評価値の最も良いものを選びます。
+     * 部分トリップの状態はプールしたTripStateに親からコピーして作るので、展開ごとの割り当てはありません。
+     */
+    private void buildTripByBeam() {
+        int width = this.activeWidth;
+        this.beam[0].reset();
+        this.beamHash[0] = 0;
+        this.beamMoves[0] = 0;
+        int beamSize = 1;
+        this.bestLen = 0;
+        this.bestScore = Double.MAX_VALUE;
+        for (int depth = 0; beamSize > 0; depth++) {
+            // 各部分トリップの候補を展開します。最初の箱はビームを埋めるために多めに展開します。
+            int limit = depth == 0 ? Math.max(width, SolverConfig.BEAM_EXPAND) : SolverConfig.BEAM_EXPAND;
+            int children = 0;
+            for (int b = 0; b < beamSize; b++) {
+                TripState state = this.beam[b];
+                int found = collectCandidates(state, limit);
+                if (found == 0) {
+                    // これ以上伸ばせない部分トリップは、トリップの候補として評価します。
+                    if (depth > 0 && this.beamScore[b] < this.bestScore) {
+                        this.bestScore = this.beamScore[b];
+                        this.bestLen = state.depth();
+                        for (int k = 0; k < this.bestLen; k++) this.bestSeq[k] = state.boxAt(k);
+                    }
+                    continue;
+                }
+                for (int k = 0; k < found; k++) {
+                    int id = this.candId[k];
+                    int moves = this.beamMoves[b]
+                            + Math.abs(this.boxes.r[id] - state.currentRow()) + Math.abs(this.boxes.c[id] - state.currentCol());
+                    double score = (double) (moves + this.boxes.distToOrigin(id)) / (state.totalWeight() + this.boxes.w[id]);
+                    this.childParent[children] = b;
+                    this.childBox[children] = id;
+                    this.childMoves[children] = moves;
+                    this.childKey[children] = ((long) (score * (1 << 20)) << 20) | children;
+                    children++;
+                }
+            }
+            if (children == 0) break;
+
+            // 評価値の良い順に、重複を除いて最大width個の子を次の深さの部分トリップにします。
+            java.util.Arrays.sort(this.childKey, 0, children);
+            java.util.Arrays.fill(this.seen, 0);
+            int nextSize = 0;
+            for (int k = 0; k < children && nextSize < width; k++) {
+                int child = (int) (this.childKey[k] & ((1 << 20) - 1));
+                int parent = this.childParent[child], id = this.childBox[child];
+                long setHash = this.beamHash[parent] ^ mix(id);
+                if (!markSeen(setHash ^ mix(~id))) continue;
+                TripState next = this.nextBeam[nextSize];
+                next.copyFrom(this.beam[parent]);
+                next.commit(id);
+                this.nextHash[nextSize] = setHash;
+                this.nextMoves[nextSize] = this.childMoves[child];
+                this.beamScore[nextSize] = (double) (this.childKey[k] >>> 20) / (1 << 20);
+                nextSize++;
+            }
+            TripState[] states = this.beam;
+            this.beam = this.nextBeam;
+            this.nextBeam = states;
+            long[] hashes = this.beamHash;
+            this.beamHash = this.nextHash;
+            this.nextHash = hashes;
+            int[] moves = this.beamMoves;
+            this.beamMoves = this.nextMoves;
+            this.nextMoves = moves;
+            beamSize = nextSize;
+        }
+
+        // 選んだ部分トリップを確定させます。各箱は展開時にcanAppend()で確認済みです。
+        for (int k = 0; k < this.bestLen; k++) {
+            this.trip.commit(this.bestSeq[k]);
+            this.index.remove(this.bestSeq[k]);
+        }
+    }
+
+    /**
+     * 部分トリップstateに追加できる箱のうち、評価値の良いものを最大limit個、評価値の昇順にcandId・candEvalへ集めます。
+     * 列挙の方法と打ち切りの条件は貪欲法（extendGreedily()）と同じで、
+     * 打ち切りの基準が「最良の評価値」ではなく「集めた中で最も悪い評価値」になる点だけが異なります。
+     * @return 集めた候補の数
+     */
+    private int collectCandidates(TripState state, int limit) {
+        if (Stats.ENABLED) this.statSteps++;
+        int found = 0;
+        int fromR = state.currentRow(), fromC = state.currentCol();
+        int maxWeight = this.index.maxWeight();
+        int reach = state.reachLimit();
+        int homeLimit = state.homeLimit(this.index.minWeight());
+        if (homeLimit < this.index.minHome()) return 0;
+        int blockSize = this.index.blockSize;
+        int centerBr = this.index.centerBlockRow(fromR), centerBc = this.index.centerBlockCol(fromC);
+        int outside = this.index.outsideDistance(fromR, fromC);
+        int maxRing = this.index.maxRingFrom(centerBr, centerBc);
+        for (int ring = 0; ring <= maxRing; ring++) {
+            double worst = found == limit ? this.candEval[found - 1] : Double.MAX_VALUE;
+            int ringMinDist = Math.max(1, outside + (ring == 0 ? 0 : (ring - 1) * blockSize + 1));
+            if (ringMinDist > reach || lowerBound(ringMinDist, fromR, fromC, maxWeight) > worst) break;
+            for (int bi = centerBr - ring; bi <= centerBr + ring; bi++) {
+                if (bi < 0 || bi >= this.index.blockRows) continue;
+                boolean edgeRow = Math.abs(bi - centerBr) == ring;
+                int step = (edgeRow || ring == 0) ? 1 : 2 * ring;
+                for (int bj = centerBc - ring; bj <= centerBc + ring; bj += step) {
+                    if (bj < 0 || bj >= this.index.blockCols) continue;
+                    int block = bi * this.index.blockCols + bj;
+                    int count = this.index.count(block);
+                    if (count == 0 || this.index.minHomeOfBlock(block) > homeLimit) continue;
+                    if (Stats.ENABLED) this.statScanned += count;
+                    for (int k = 0; k < count; k++) {
+                        int boxId = this.index.boxInBlock(block, k);
+                        int dist = Math.abs(this.boxes.r[boxId] - fromR) + Math.abs(this.boxes.c[boxId] - fromC);
+                        worst = found == limit ? this.candEval[found - 1] : Double.MAX_VALUE;
+                        if (dist > reach || this.boxes.distToOrigin(boxId) > homeLimit
+                                || lowerBound(dist, fromR, fromC, maxWeight) > worst) continue;
+                        if (state.contains(boxId)) continue;
+                        boolean feasible = state.canAppend(boxId);
+                        if (Stats.ENABLED) {
+                            this.statChecks++;
+                            if (!feasible) this.statRejects++;
+                        }
+                        if (!feasible) continue;
+                        double value = evaluate(boxId, dist, fromR, fromC);
+                        // 評価値（同じならID）の昇順を保つように挿入します。
+                        int pos = found == limit ? limit - 1 : found;
+                        if (found == limit && (value > this.candEval[pos]
+                                || (value == this.candEval[pos] && boxId > this.candId[pos]))) continue;
+                        while (pos > 0 && (value < this.candEval[pos - 1]
+                                || (value == this.candEval[pos - 1] && boxId < this.candId[pos - 1]))) {
+                            this.candEval[pos] = this.candEval[pos - 1];
+                            this.candId[pos] = this.candId[pos - 1];
+                            pos--;
+                        }
+                        this.candEval[pos] = value;
+                        this.candId[pos] = boxId;
+                        if (found < limit) found++;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /** 箱IDを64ビットの乱数に写します（splitmix64の最終段）。部分トリップの集合のハッシュに使います。 */
+    private static long mix(long x) {
+        x = (x + 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+
+    /** ハッシュ表にkeyを登録します。既に登録済みならfalseを返します。 */
+    private boolean markSeen(long key) {
+        if (key == 0) key = 1; // 0は空きを表すので避けます。
+        int mask = this.seen.length - 1;
+        for (int i = (int) (key ^ (key >>> 32)) & mask; ; i = (i + 1) & mask) {
+            if (this.seen[i] == 0) {
+                this.seen[i] = key;
+                return true;
+            }
+            if (this.seen[i] == key) return false;
+        }
+    }
+
+    /**
+     * 担当領域の未輸送の箱がなくなるまで、一連の輸送サイクルを貪欲に計画します。
+     * 各サイクルでは、最適な箱の組み合わせを計画し、トリップとしてplanの末尾に追加します。
+     * @param plan 計画したトリップの追加先
+     */
+    void plan(TripPlan plan) {
+        // まだ輸送されていない箱は、空間インデックスに残っている箱です。
+        // 計画に追加した箱はその時点でインデックスから取り除くので、インデックスに残っている箱がそのまま次の候補になります。
+
+        long startNanos = System.nanoTime();
+        int startBoxes = this.index.size();
+        // 輸送すべき箱が残っている限り、このメインループを繰り返します。
+        while (this.index.size() > 0) {
+            long now = System.nanoTime();
+            if (now >= this.hardDeadlineNanos) {
+                // 持ち時間を使い切ったので、残りの箱は候補を探さずに位置の順になめて計画します（箱の数に比例する時間で終わります）。
+                sweepRemaining(plan);
+                break;
+            }
+            // 持ち時間を使い切ったら、残りの箱は近い順の貪欲法で計画します。
+            if (!this.fast && now >= this.deadlineNanos) switchToFast();
+            if (this.activeWidth > 1) {
+                // ここまでの1箱あたりの時間から、残りの箱を今のビーム幅で計画し終える時刻を見積もり、
+                // 間に合わなければビーム幅を半分にします（時間は幅にほぼ比例します）。
+                int done = startBoxes - this.index.size();
+                if (done > 0 && now + (now - startNanos) / done * this.index.size() > this.beamDeadlineNanos) {
+                    this.activeWidth /= 2;
+                    startNanos = now;
+                    startBoxes = this.index.size();
+                }
+            }
+            // 各輸送サイクルは、社長が(0,0)にいて手が空である状態から始まります。
+            // この現在の輸送サイクルで運ぶことを計画している箱は、トリップ状態のスタックに積まれた順に保持します。
+            // トリップ状態は残り耐久力・上に載る重さ・現在位置も持っているため、
+            // 候補の判定はこの状態への追加可否を調べるだけで済み、計画全体を毎回再生する必要はありません。
+            this.trip.reset();
+            // ビーム幅が2以上ならビームサーチで、そうでなければ貪欲法で、このサイクルで運ぶ箱の組み合わせを構築します。
+            if (this.activeWidth > 1) {
+                buildTripByBeam();
+            } else {
+                extendGreedily();
+            }
+            
+            // --- フォールバック戦略 ---
+            // 上記の計画構築ループで、複数の箱を運ぶ計画が一つも立てられなかった場合（計画が空の場合）
+            // かつ、まだ未輸送の箱が残っている場合、単独で運べる箱がないか再探索します。
+            if (this.trip.depth() == 0 && this.index.size() > 0) {
+                double min_eval_value = Double.MAX_VALUE; // ここでも評価値で比較し、単独で運ぶ最も効率的な箱を探します。
+                int singleTargetId = -1; // 単独で運ぶ最適な箱のIDを初期化
+
+                // 未輸送の箱全てを対象に、単独で運ぶ計画が実行可能かチェックします。
+                for (int boxId : this.ids) {
+                    if (!this.index.contains(boxId)) continue;
+                    // 社長の現在位置（0,0）からこの箱までの距離を計算
+                    int dist = this.boxes.distToOrigin(boxId);
+
+                    // この単独の箱を運ぶ計画が、箱を潰さずに実行可能かをトリップ状態（手ぶら）でチェックします。
+                    if (this.trip.canAppend(boxId)) { 
+                        double current_eval_value = evaluate(boxId, dist, 0, 0); // 単独輸送の場合も同様の評価関数を使用
+                        if (current_eval_value < min_eval_value) {
+                            min_eval_value = current_eval_value;
+                            singleTargetId = boxId; // 最も評価値の良かった単独の箱を記録
+                        }
+                    }
+                }
+                if (singleTargetId != -1) {
+                    // 単独で安全に運べる箱が見つかった場合、その箱を現在の計画に追加します。
+                    this.trip.commit(singleTargetId);
+                    this.index.remove(singleTargetId);
+                } else {
+                    // どの箱も単独ですら安全に運べない極端な状況の場合、
+                    // 現在の戦略ではこれ以上箱を運べないため、無限ループを防ぐためにここでメインループを抜けます。
+                    System.err.println("Warning: No box can be transported safely, even individually. Breaking loop.");
+                    break; 
+                }
+            }
+
+            // フォールバック戦略を試した後でも計画が空で、かつ未輸送の箱がまだ残っている場合、
+            // これは現在の戦略では解決不可能な状態である可能性が高いです。
+            // この場合も無限ループや不適切な動作を防ぐために、メインループを抜けます。
+            if (this.trip.depth() == 0 && this.index.size() > 0) {
+                System.err.println("Error: Plan is empty but remaining boxes exist. Strategy might be stuck or unsuitable.");
+                break;
+            }
+
+            // --- 確定した輸送計画の記録 ---
+            // 策定された計画（トリップ状態のスタックに積まれた箱の順序）を1つのトリップとして記録します。
+            recordTrip(plan);
+            if (Stats.ENABLED && this.fast) Stats.fastTrips.increment();
+        }
+        if (Stats.ENABLED) {
+            Stats.feasibilityChecks.add(this.statChecks);
+            Stats.feasibilityRejects.add(this.statRejects);
+            Stats.greedySteps.add(this.statSteps);
+            Stats.candidatesScanned.add(this.statScanned);
+        }
+    }
+
+    /** トリップ状態（this.trip）に積んだ箱を、1つのトリップとしてplanの末尾に追加します。 */
+    private void recordTrip(TripPlan plan) {
+        int tripIndex = plan.addTrip();
+        for (int k = 0; k < this.trip.depth(); k++) {
+            plan.append(tripIndex, this.trip.boxAt(k));
+        }
+        plan.cost[tripIndex] = TripState.tourLength(this.boxes, plan.trips[tripIndex], plan.len[tripIndex]);
+        if (Stats.ENABLED) Stats.recordTrip(plan.len[tripIndex]);
+    }
+
+    /**
+     * 空間インデックスに残っている箱を、候補を探さずに位置の順になめて計画し、planの末尾へ追加します。
+     * 箱は担当領域の遠い行から近い行へ、1行ごとに向きを変えながら並べ（蛇行順）、各トリップはまだ計画していない先頭の箱から
+     * 始めて、その順に追加できる箱を積んでいきます。追加できない箱がFAST_REJECT_LIMIT個続いたらそのトリップを終えます。
+     * 隣り合う箱は隣のマスにあるので経路は近い順の貪欲法とほぼ同じになり、N=1000の生成ケースでは操作回数が
+     * 時間制限なしで計画した場合より0.5%ほど多いだけです。計算量は（箱の数 + トリップの数 × FAST_REJECT_LIMIT）に比例します。
+     */
+    private void sweepRemaining(TripPlan plan) {
+        // 担当領域の箱IDは行優先の順なので、末尾からたどると遠い行から近い行の順になります。1行おきに列の向きを反転させます。
+        int m = 0;
+        int[] order = new int[this.index.size()];
+        boolean forward = false;
+        for (int end = this.ids.length - 1; end >= 0; ) {
+            int row = this.boxes.r[this.ids[end]];
+            int start = end;
+            while (start > 0 && this.boxes.r[this.ids[start - 1]] == row) start--;
+            for (int k = 0; k <= end - start; k++) {
+                int id = this.ids[forward ? start + k : end - k];
+                if (this.index.contains(id)) order[m++] = id;
+            }
+            forward = !forward;
+            end = start - 1;
+        }
+        // まだ計画していない箱を、蛇行順の連結リストでたどります（next[p]はpの次に残っている位置、mは終端）。
+        int[] next = new int[m];
+        for (int p = 0; p < m; p++) next[p] = p + 1;
+        int head = 0;
+        while (head < m) {
+            this.trip.reset();
+            int rejects = 0, prev = -1;
+            for (int p = head; p < m && rejects < SolverConfig.FAST_REJECT_LIMIT; p = next[p]) {
+                int id = order[p];
+                // 手ぶらなら先頭の箱は必ず追加できる（1箱だけなら潰れずに運べる）ので、どのトリップも1箱以上進みます。
+                if (this.trip.depth() == 0 || this.trip.canAppend(id)) {
+                    this.trip.commit(id);
+                    this.index.remove(id);
+                    if (prev < 0) head = next[p];
+                    else next[prev] = next[p];
+                    rejects = 0;
+                    // 残っているどの箱を追加しても潰れる（extendGreedily()と同じ判定）なら、断られる箱を数えずにトリップを終えます。
+                    if (this.trip.homeLimit(this.index.minWeight()) < this.index.minHome()) break;
+                } else {
+                    rejects++;
+                    prev = p;
+                }
+            }
+            recordTrip(plan);
+            if (Stats.ENABLED) Stats.sweepTrips.increment();
+        }
+    }
+}
+
+/**
+ * 未輸送の箱を、グリッド上の位置から引けるようにした空間インデックス（バケットグリッド）。
+ * グリッドの長方形の領域（全体またはセクタ）を一辺blockSizeの正方形のブロックに分け、ブロックごとに残っている箱のIDを詰めて持ちます。
+ * 貪欲法は出発点のブロックから外側へブロックの輪を順に調べるので、箱が取り除かれて疎になっても
+ * 空のブロックを1回の判定で飛ばせます。箱の削除は詰めた配列の末尾との入れ替えで定数時間です。
+ * また、評価値の下限を計算するために、残っている箱の重さの最大値を重さの降順リストから求めます。
+ */
+class CandidateIndex {
+    final int blockSize;               // ブロックの一辺のマス数
+    final int blockRows, blockCols;    // 領域の縦と横に並ぶブロックの数
+    private final int top, left;       // 領域の左上のマス
+    private final int bottom, right;   // 領域の右下のマス
+    private final int capacity;        // 1ブロックに入る箱の最大数（blockSize²）
+    private int remaining;             // 残っている箱の総数
+    private final int[] members;       // members[block*capacity + k] = ブロックに残っているk番目の箱のID
+    private final int[] counts;        // 各ブロックに残っている箱の数
+    private final int[] slot;          // 領域内の各マスの箱がmembersのどこに入っているか（取り除かれた箱は-1）
+    private final int[] byWeightDesc;  // 箱IDを重さの降順に並べたもの
+    private int weightCursor;          // byWeightDescのうち、まだ残っている最初の箱の位置
+    private int lightCursor;           // byWeightDescのうち、まだ残っている最後の箱の位置
+    private final BoxTable boxes;
+
+    /**
+     * 領域内の全ての箱が残っている状態のインデックスを作ります。
+     * ブロックの一辺は領域の一辺の平方根とし、ブロックの数と1ブロックあたりの箱の数が釣り合うようにします。
+     * @param boxes 箱の属性テーブル
+     * @param ids 登録する箱ID（全て領域内にあること）
+     * @param top 領域の上端の行
+     * @param left 領域の左端の列
+     * @param height 領域の行数
+     * @param width 領域の列数
+     */
+    public CandidateIndex(BoxTable boxes, int[] ids, int top, int left, int height, int width) {
+        this.boxes = boxes;
+        this.top = top;
+        this.left = left;
+        this.bottom = top + height - 1;
+        this.right = left + width - 1;
+        this.blockSize = Math.max(2, (int) Math.round(Math.sqrt(Math.max(height, width))));
+        this.blockRows = (height + this.blockSize - 1) / this.blockSize;
+        this.blockCols = (width + this.blockSize - 1) / this.blockSize;
+        this.capacity = this.blockSize * this.blockSize;
+        this.members = new int[this.blockRows * this.blockCols * this.capacity];
+        this.counts = new int[this.blockRows * this.blockCols];
+        // セクタごとに全ての箱の分を確保すると、N=1000では400個のセクタで合わせて数百MBになるので、領域内のマスの分だけ確保します。
+        this.slot = new int[height * width];
+        java.util.Arrays.fill(this.slot, -1);
+        // 重さの降順（同じ重さならID順）に並べるため、(重さの補数, ID) を1つのlongにまとめてソートします。
+        long[] keys = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            int id = ids[i];
+            int block = blockOf(boxes.r[id], boxes.c[id]);
+            int k = block * this.capacity + this.counts[block]++;
+            this.members[k] = id;
+            this.slot[cellOf(id)] = k;
+            keys[i] = ((long) (Integer.MAX_VALUE - boxes.w[id]) << 32) | id;
+        }
+        this.remaining = ids.length;
+        java.util.Arrays.sort(keys);
+        this.byWeightDesc = new int[ids.length];
+        for (int k = 0; k < ids.length; k++) this.byWeightDesc[k] = (int) keys[k];
+        this.weightCursor = 0;
+        this.lightCursor = ids.length - 1;
+    }
+
+    /** マス(r, c)（領域内）を含むブロックの番号を返します。 */
+    int blockOf(int r, int c) {
+        return ((r - this.top) / this.blockSize) * this.blockCols + (c - this.left) / this.blockSize;
+    }
+
+    /** 残っている箱の総数を返します。 */
+    int size() {
+        return this.remaining;
+    }
+
+    /** 箱id（領域内にあること）のマスの、領域内での行優先の番号を返します。 */
+    private int cellOf(int id) {
+        return (this.boxes.r[id] - this.top) * (this.right - this.left + 1) + this.boxes.c[id] - this.left;
+    }
+
+    /** 箱id（領域内にあること）がまだ残っているかどうかを返します。 */
+    boolean contains(int id) {
+        return this.slot[cellOf(id)] >= 0;
+    }
+
+    /** 行rに最も近いブロックの行番号を返します（行rが領域外なら端のブロック）。 */
+    int centerBlockRow(int r) {
+        return (Math.min(Math.max(r, this.top), this.bottom) - this.top) / this.blockSize;
+    }
+
+    /** 列cに最も近いブロックの列番号を返します（列cが領域外なら端のブロック）。 */
+    int centerBlockCol(int c) {
+        return (Math.min(Math.max(c, this.left), this.right) - this.left) / this.blockSize;
+    }
+
+    /**
+     * マス(r, c)から領域までのマンハッタン距離を返します（領域内なら0）。
+     * 領域は軸に沿った長方形なので、領域内のどのマスへの距離も「この距離 + 領域に最も近いマスからの距離」になります。
+     */
+    int outsideDistance(int r, int c) {
+        int dr = r < this.top ? this.top - r : Math.max(0, r - this.bottom);
+        int dc = c < this.left ? this.left - c : Math.max(0, c - this.right);
+        return dr + dc;
+    }
+
+    /** ブロックに残っている箱の数を返します。 */
+    int count(int block) {
+        return this.counts[block];
+    }
+
+    /** ブロックに残っているk番目（0 ≤ k < count(block)）の箱のIDを返します。順序に意味はありません。 */
+    int boxInBlock(int block, int k) {
+        return this.members[block * this.capacity + k];
+    }
+
+    /** マス(r, c)からブロック内の最も近いマスまでのマンハッタン距離を返します。 */
+    int minDistToBlock(int block, int r, int c) {
+        int top = this.top + (block / this.blockCols) * this.blockSize;
+        int left = this.left + (block % this.blockCols) * this.blockSize;
+        int dr = r < top ? top - r : Math.max(0, r - (top + this.blockSize - 1));
+        int dc = c < left ? left - c : Math.max(0, c - (left + this.blockSize - 1));
+        return dr + dc;
+    }
+
+    /** ブロック(br, bc)から最も遠いブロックまでのチェビシェフ距離（ブロック単位）を返します。 */
+    int maxRingFrom(int br, int bc) {
+        return Math.max(Math.max(br, this.blockRows - 1 - br), Math.max(bc, this.blockCols - 1 - bc));
+    }
+
+    /** 箱idをインデックスから取り除きます（輸送が計画されたとき）。 */
+    void remove(int id) {
+        int cell = cellOf(id);
+        int k = this.slot[cell];
+        if (k < 0) return;
+        int block = k / this.capacity;
+        int lastK = block * this.capacity + --this.counts[block];
+        this.remaining--;
+        int moved = this.members[lastK]; // ブロックの末尾の箱を空いた位置へ移します。
+        this.members[k] = moved;
+        this.slot[cellOf(moved)] = k;
+        this.slot[cell] = -1;
+    }
+
+    /** 残っている箱の重さの最小値を返します。箱が残っていなければ1を返します。 */
+    int minWeight() {
+        while (this.lightCursor >= 0) {
+            int id = this.byWeightDesc[this.lightCursor];
+            if (this.slot[cellOf(id)] >= 0) return this.boxes.w[id];
+            this.lightCursor--;
+        }
+        return 1;
+    }
+
+    /** 領域内のマスの、(0,0)からの距離の最小値を返します。 */
+    int minHome() {
+        return this.top + this.left;
+    }
+
+    /** ブロック内のマスの、(0,0)からの距離の最小値を返します。 */
+    int minHomeOfBlock(int block) {
+        return this.top + (block / this.blockCols) * this.blockSize + this.left + (block % this.blockCols) * this.blockSize;
+    }
+
+    /** 残っている箱の重さの最大値を返します。箱が残っていなければ1を返します。 */
+    int maxWeight() {
+        while (this.weightCursor < this.byWeightDesc.length) {
+            int id = this.byWeightDesc[this.weightCursor];
+            if (this.slot[cellOf(id)] >= 0) return this.boxes.w[id];
+            this.weightCursor++; // 取り除かれた箱は二度と戻らないので、カーソルは前に進めるだけです。
+        }
+        return 1;
+    }
+}
+
+/**
+ * 1回の輸送サイクル（(0,0)から出発し、箱を順に拾って(0,0)へ戻る）の途中状態を保持するクラス。
+ * 手に持っている箱のスタックを、箱ID・残り耐久力・重さの累積和というプリミティブ配列で管理します。
+ * 「この箱を次に拾っても(0,0)まで帰れるか？」という問い合わせにスタックの深さに比例する時間で答え、
+ * その間に一切オブジェクトを生成しません。候補を採用する場合はcommit()を呼びます。
+ */
+class TripState {
+    // 箱IDごとの属性（行座標、列座標、重さ、耐久力）。BoxTableの配列をそのまま参照します。
+    private final int[] r, c, w;
+    private final long[] d;
+
+    private final int[] stack;     // 手に持っている箱のID。stack[0]が一番下、stack[depth-1]が一番上です。
+    private final long[] rem;      // スタックの各段にある箱の残り耐久力
+    private final long[] prefixW;  // prefixW[i] = stack[0..i-1] の重さの合計。段iの上に載る重さは prefixW[depth] - prefixW[i+1] です。
+    private int depth;             // 現在のスタックの高さ
+    private int curR, curC;        // 現在位置（最後に拾った箱の場所。手ぶらなら(0,0)）
+
+    /**
+     * TripStateのコンストラクタ。
+     * 箱の属性はBoxTableの配列を共有し、スタック用の配列をcapacity段分だけ確保します。
+     * @param boxes 全ての箱の属性テーブル
+     * @param capacity 積むことのできる箱の最大数（担当する箱の数以上であれば十分です）
+     */
+    public TripState(BoxTable boxes, int capacity) {
+        int n = capacity;
+        this.r = boxes.r;
+        this.c = boxes.c;
+        this.w = boxes.w;
+        this.d = boxes.dCurrent; // まだ床にある箱はダメージを受けていないので、現在の耐久力をそのまま使います。
+        this.stack = new int[n];
+        this.rem = new long[n];
+        this.prefixW = new long[n + 1];
+        reset();
+    }
+
+    /**
+     * 手ぶらで(0,0)にいる状態に戻します。
+     */
+    public void reset() {
+        this.depth = 0;
+        this.curR = 0;
+        this.curC = 0;
+    }
+
+    /** 現在のスタックの高さを返します。 */
+    public int depth() {
+        return this.depth;
+    }
+
+    /**
+     * 現在の状態から、canAppend()がtrueになりうる箱までの距離の上限を返します（必要条件による見積もり）。
+     * 上に箱が載っている段iは、距離dの箱を拾って帰ると少なくとも「上の重さ × d + (上の重さ + 1) × 1」のダメージを受けるので、
+     * 残り耐久力がそれを上回るdまでしか候補になりえません。手ぶらのときはInteger.MAX_VALUEを返します。
+     */
+    public int reachLimit() {
+        long limit = Integer.MAX_VALUE;
+        long total = this.prefixW[this.depth];
+        for (int i = this.depth - 2; i >= 0; i--) { // 一番上の段には何も載っていないので対象外です。
+            long above = total - this.prefixW[i + 1];
+            long reach = (this.rem[i] - above - 2) / above;
+            if (this.rem[i] - above - 2 < 0) return -1; // どの距離の箱も追加できません。
+            if (reach < limit) limit = reach;
+        }
+        return (int) limit;
+    }
+
+    /**
+     * 重さminWeight以上の箱のうち、canAppend()がtrueになりうる箱の(0,0)からの距離の上限を返します（必要条件による見積もり）。
+     * 段iの箱は、新しい箱を拾ってから(0,0)へ戻るまでに少なくとも「(上の重さ + 新しい箱の重さ) × 新しい箱の(0,0)からの距離」の
+     * ダメージを受けるので、その距離は (残り耐久力 - 1) / (上の重さ + minWeight) 以下でなければなりません。
+     * 遠いセクタでは、これがセクタまでの距離を下回った時点で候補を調べずにトリップを終えられます。手ぶらのときはInteger.MAX_VALUEを返します。
+     */
+    public int homeLimit(int minWeight) {
+        long limit = Integer.MAX_VALUE;
+        long total = this.prefixW[this.depth];
+        for (int i = this.depth - 1; i >= 0; i--) {
+            long above = total - this.prefixW[i + 1];
+            limit = Math.min(limit, (this.rem[i] - 1) / (above + minWeight));
+        }
+        return (int) limit;
+    }
+
+    /** スタックに積まれた箱の総重量を返します。 */
+    public long totalWeight() {
+        return this.prefixW[this.depth];
+    }
+
+    /** 箱boxIdが既にスタックに積まれているかどうかを返します（スタックの深さに比例する時間がかかります）。 */
+    public boolean contains(int boxId) {
+        for (int k = 0; k < this.depth; k++) {
+            if (this.stack[k] == boxId) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 別のトリップ状態（同じBoxTableを共有するもの）の内容を、この状態にコピーします。
+     * スタックの深さ分だけをコピーするので、ビームサーチで部分トリップを複製するのに使えます。
+     */
+    public void copyFrom(TripState other) {
+        int n = other.depth;
+        System.arraycopy(other.stack, 0, this.stack, 0, n);
+        System.arraycopy(other.rem, 0, this.rem, 0, n);
+        System.arraycopy(other.prefixW, 0, this.prefixW, 0, n + 1);
+        this.depth = n;
+        this.curR = other.curR;
+        this.curC = other.curC;
+    }
+
+    /** 下からk番目（0始まり）に積まれた箱のIDを返します。 */
+    public int boxAt(int k) {
+        return this.stack[k];
+    }
+
+    /** 現在位置の行座標を返します。 */
+    public int currentRow() {
+        return this.curR;
+    }
+
+    /** 現在位置の列座標を返します。 */
+    public int currentCol() {
+        return this.curC;
+    }
+
+    /**
+     * 現在の状態から箱boxIdを拾いに行き、そのまま(0,0)へ帰還しても箱が潰れないかを判定します。
+     * 状態は変更しません。
+     * 段iの箱が受けるダメージは「箱までの移動距離 × 現在上に載っている重さ」と
+     * 「箱から(0,0)までの距離 × (上に載っている重さ + 新しい箱の重さ)」の合計です。
+     * @param boxId 次に拾う候補の箱ID
+     * @return 箱を拾っても全ての箱が耐久力0より大きいまま帰還できる場合はtrue
+     */
+    public boolean canAppend(int boxId) {
+        int dist = Math.abs(this.r[boxId] - this.curR) + Math.abs(this.c[boxId] - this.curC);
+        int home = this.r[boxId] + this.c[boxId]; // 箱の位置から(0,0)までのマンハッタン距離
+        // 新しい箱は一番上に載るので、その箱自身は帰還中にダメージを受けません。
+        if (this.d[boxId] <= 0) return false;
+        long total = this.prefixW[this.depth];
+        long wNew = this.w[boxId];
+        // 一番上の段から順に、各段の箱が帰還まで耐えられるかを調べます。
+        for (int i = this.depth - 1; i >= 0; i--) {
+            long above = total - this.prefixW[i + 1]; // この段より上に載っている箱の総重量
+            long damage = above * dist + (above + wNew) * home;
+            if (this.rem[i] - damage <= 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 箱boxIdを拾いに行く移動と、拾う操作を確定させます。
+     * 移動中のダメージをスタック上の各箱に適用し、箱をスタックの一番上に積みます。
+     * canAppend()で確認済みであることを前提とし、ここでは判定を行いません。
+     * @param boxId 拾う箱のID
+     */
+    public void commit(int boxId) {
+        int dist = Math.abs(this.r[boxId] - this.curR) + Math.abs(this.c[boxId] - this.curC);
+        long total = this.prefixW[this.depth];
+        for (int i = this.depth - 1; i >= 0; i--) {
+            this.rem[i] -= (total - this.prefixW[i + 1]) * dist;
+        }
+        this.stack[this.depth] = boxId;
+        this.rem[this.depth] = this.d[boxId];
+        this.prefixW[this.depth + 1] = total + this.w[boxId];
+        this.depth++;
+        this.curR = this.r[boxId];
+        this.curC = this.c[boxId];
+    }
+
+    /**
+     * 箱の並び（拾う順）で表された1つのトリップについて、(0,0)から出発して全ての箱を拾い(0,0)へ戻るまでの
+     * 移動距離を求めます。途中で箱が潰れる場合は-1を返します。
+     * 箱b_iが受けるダメージの合計は、b_iより後に拾う各箱mについて「mの重さ × mを拾ってから(0,0)に戻るまでの残り距離」
+     * を足し合わせたものに等しくなります。そこで並びを末尾から逆にたどり、その合計を累積しながら各箱の耐久力と比べることで、
+     * 状態を持たずに長さに比例する時間で判定できます。
+     * @param boxes 箱の属性テーブル
+     * @param seq 拾う順に並べた箱ID
+     * @param len seqの先頭から何個を使うか
+     * @return トリップの移動距離。実行不可能なら-1
+     */
+    static int tourLength(BoxTable boxes, int[] seq, int len) {
+        if (len == 0) return 0;
+        int last = seq[len - 1];
+        int remaining = boxes.r[last] + boxes.c[last]; // 現在の箱を拾ってから(0,0)に戻るまでの残り距離
+        long load = 0; // 現在の箱より後に拾う箱が、この箱に与えるダメージの合計
+        for (int k = len - 1; k >= 0; k--) {
+            int id = seq[k];
+            if (boxes.dCurrent[id] - load <= 0) return -1;
+            load += (long) boxes.w[id] * remaining;
+            if (k > 0) {
+                int prev = seq[k - 1];
+                remaining += Math.abs(boxes.r[id] - boxes.r[prev]) + Math.abs(boxes.c[id] - boxes.c[prev]);
+            }
+        }
+        int first = seq[0];
+        return remaining + boxes.r[first] + boxes.c[first]; // (0,0)から最初の箱までの距離を足します。
+    }
+}
+
+/**
+ * 輸送サイクル（トリップ）の一覧を保持するクラス。
+ * 各トリップは拾う順に並べた箱IDの配列で、(0,0)から出発して全て拾い(0,0)へ戻ります。
+ * トリップごとの移動距離をキャッシュしておき、改善フェーズでは変更したトリップだけを再計算します。
+ *
+ * 中継（StagingOptimizer）を使ったトリップでは、stage[t][k]にその箱を拾う直前の中継地点を記録します。
+ * 中継地点は既に空になったマスで、そのマスに元々あった箱のIDで表します（-1なら中継なし）。
+ * 中継つきの箱を拾うときは、中継地点へ行ってスタックの一番上の箱を置き（操作2）、箱を拾ってから中継地点へ戻り、
+ * 置いた箱を拾い直します。こうすると、後から拾う箱をスタックの一番上の箱の下に差し込めます。
+ * 中継地点が空かどうかはトリップを実行する順序で決まるので、中継を使った後はトリップを並べ替えてはいけません。
+ */
+class TripPlan {
+    int[][] trips;  // trips[t][0..len[t]-1] がトリップtで拾う箱ID（拾う順）
+    int[] len;      // 各トリップに含まれる箱の数
+    int[] cost;     // 各トリップの操作回数のうち、拾う操作以外のもの（移動距離と、中継での置く・拾い直す操作）
+    int count;      // トリップの数
+    int[][] stage;  // stage[t][k] はtrips[t][k]を拾う前の中継地点（-1なら中継なし）。中継を使うまではnullです。
+
+    /**
+     * 空のトリップ一覧を作ります。
+     * @param boxCount 箱の総数。トリップの数はこれを超えません。
+     */
+    public TripPlan(int boxCount) {
+        this.trips = new int[Math.max(1, boxCount)][];
+        this.len = new int[Math.max(1, boxCount)];
+        this.cost = new int[Math.max(1, boxCount)];
+        this.count = 0;
+    }
+
+    /**
+     * 別のトリップ一覧の内容をコピーした新しい一覧を作ります。
+     * @param other コピー元
+     */
+    public TripPlan(TripPlan other) {
+        this.trips = new int[other.trips.length][];
+        this.len = other.len.clone();
+        this.cost = other.cost.clone();
+        this.count = other.count;
+        for (int t = 0; t < other.count; t++) {
+            this.trips[t] = java.util.Arrays.copyOf(other.trips[t], other.len[t]);
+        }
+        if (other.stage != null) {
+            this.stage = new int[other.stage.length][];
+            for (int t = 0; t < other.count; t++) {
+                if (other.stage[t] != null) this.stage[t] = other.stage[t].clone();
+            }
+        }
+    }
+
+    /** 空のトリップを末尾に追加し、そのインデックスを返します。 */
+    int addTrip() {
+        int t = this.count++;
+        if (this.trips[t] == null) this.trips[t] = new int[8];
+        this.len[t] = 0;
+        this.cost[t] = 0;
+        if (this.stage != null) this.stage[t] = null;
+        return t;
+    }
+
+    /**
+     * 別のトリップ一覧（中継を使っていないもの）の全てのトリップを、配列をコピーせずにそのまま末尾へ移します。
+     * 移した後のotherは使わないでください。
+     */
+    void moveFrom(TripPlan other) {
+        for (int t = 0; t < other.count; t++) {
+            int u = this.count++;
+            this.trips[u] = other.trips[t];
+            this.len[u] = other.len[t];
+            this.cost[u] = other.cost[t];
+            if (this.stage != null) this.stage[u] = null;
+        }
+        other.count = 0;
+    }
+
+    /** トリップtの末尾に箱idを追加します。 */
+    void append(int t, int id) {
+        ensureCapacity(t, this.len[t] + 1);
+        this.trips[t][this.len[t]++] = id;
+    }
+
+    /**
+     * トリップtの内容をseq[0..n-1]で置き換えます（中継は使わないトリップになります）。
+     * @param cost 置き換え後のトリップの移動距離
+     */
+    void set(int t, int[] seq, int n, int cost) {
+        ensureCapacity(t, n);
+        System.arraycopy(seq, 0, this.trips[t], 0, n);
+        this.len[t] = n;
+        this.cost[t] = cost;
+        if (this.stage != null) this.stage[t] = null;
+    }
+
+    /**
+     * トリップtの内容を、中継つきの列seq[0..n-1]・stageSeq[0..n-1]で置き換えます。
+     * @param cost 置き換え後のトリップの移動距離と中継の操作回数の合計
+     */
+    void setStaged(int t, int[] seq, int[] stageSeq, int n, int cost) {
+        set(t, seq, n, cost);
+        boolean staged = false;
+        for (int k = 0; k < n; k++) staged |= stageSeq[k] >= 0;
+        if (!staged) return;
+        if (this.stage == null) this.stage = new int[this.trips.length][];
+        this.stage[t] = java.util.Arrays.copyOf(stageSeq, n);
+    }
+
+    /** トリップtのk番目の箱を拾う前の中継地点（箱ID）を返します。中継がなければ-1です。 */
+    int stageAt(int t, int k) {
+        return this.stage == null || this.stage[t] == null ? -1 : this.stage[t][k];
+    }
+
+    /** トリップtを取り除きます。末尾のトリップをその位置に移すので、トリップの順序は保たれません。 */
+    void removeTrip(int t) {
+        int last = --this.count;
+        int[] tmp = this.trips[t];
+        this.trips[t] = this.trips[last];
+        this.trips[last] = tmp; // 配列は後で再利用できるように末尾に残しておきます。
+        this.len[t] = this.len[last];
+        this.cost[t] = this.cost[last];
+        if (this.stage != null) {
+            this.stage[t] = this.stage[last];
+            this.stage[last] = null;
+        }
+    }
+
+    /** 全トリップの移動距離の合計を返します。 */
+    long totalMoves() {
+        long sum = 0;
+        for (int t = 0; t < this.count; t++) sum += this.cost[t];
+        return sum;
+    }
+
+    /** 別のトリップ一覧の内容で、この一覧を上書きします。 */
+    void copyFrom(TripPlan other) {
+        for (int t = 0; t < other.count; t++) {
+            ensureCapacity(t, other.len[t]);
+            System.arraycopy(other.trips[t], 0, this.trips[t], 0, other.len[t]);
+            this.len[t] = other.len[t];
+            this.cost[t] = other.cost[t];
+        }
+        this.count = other.count;
+        if (other.stage != null || this.stage != null) {
+            if (this.stage == null) this.stage = new int[this.trips.length][];
+            for (int t = 0; t < other.count; t++) {
+                this.stage[t] = other.stage == null || other.stage[t] == null ? null : other.stage[t].clone();
+            }
+        }
+    }
+
+    private void ensureCapacity(int t, int n) {
+        if (this.trips[t] == null) {
+            this.trips[t] = new int[Math.max(8, n)];
+        } else if (this.trips[t].length < n) {
+            this.trips[t] = java.util.Arrays.copyOf(this.trips[t], Math.max(n, this.trips[t].length * 2));
+        }
+    }
+}
+
+/**
+ * 貪欲法で作ったトリップの一覧を、焼きなまし法で改善するクラス。
+ * 近傍は「箱を別のトリップ（または同じトリップの別の位置）へ移す」「2つの箱を入れ替える」
+ * 「トリップ内の区間を反転する」「2つのトリップを連結する」「1つのトリップを2つに分ける」の5種類です。
+ * 変更したトリップだけをTripState.tourLength()で再計算するので、1回の評価はトリップの長さに比例する時間で済みます。
+ * 箱が潰れるトリップは評価の時点で-1となり、採用されることはありません。
+ */
+class TripAnnealer {
+    // 近傍の種類（tryMove()に渡す番号）
+    static final int RELOCATE = 0, SWAP = 1, REVERSE = 2, MERGE = 3, SPLIT = 4;
+    static final int MOVE_KINDS = 5;
+
+    private final BoxTable boxes;
+    private final TripPlan plan;  // 現在の解。run()の終了時には見つかった最良の解に置き換わります。
+    private TripPlan best;        // 最良の解のスナップショット（最良の状態から離れるときにだけ保存します）
+    private long currentMoves;    // 現在の解の総移動距離
+    private long bestMoves;       // 最良の解の総移動距離
+    private boolean bestSaved;    // 現在の解が最良で、そのスナップショットが保存済みかどうか
+    private long rng;             // xorshift乱数の状態
+
+    // 温度の初期値と最終値。移動距離の差分がこの程度なら悪化でもそれなりの確率で受理します。
+    double startTemp = 4.0;
+    double endTemp = 0.2;
+    // 最良の解の総移動距離がこれ以下になったら、制限時刻を待たずに打ち切ります（0なら打ち切りません）。
+    long targetMoves = 0;
+    boolean reachedTarget; // targetMovesに届いて、制限時刻より前に打ち切ったかどうか
+
+    long iterations; // 評価した近傍の数
+    long accepted;   // 受理した近傍の数
+
+    // 近傍の候補を作るための作業用配列
+    private final int[] bufA, bufB;
+
+    /**
+     * @param boxes 箱の属性テーブル
+     * @param plan 改善するトリップの一覧（その場で書き換えます）
+     * @param seed 乱数のシード
+     */
+    public TripAnnealer(BoxTable boxes, TripPlan plan, long seed) {
+        this.boxes = boxes;
+        this.plan = plan;
+        this.rng = seed == 0 ? 88172645463325252L : seed;
+        this.bufA = new int[boxes.size + 1];
+        this.bufB = new int[boxes.size + 1];
+    }
+
+    /**
+     * 制限時刻（またはtargetMovesに届くまで）焼きなまし法を続け、最良の解をplanに書き戻します。
+     * @param deadlineNanos 打ち切る時刻（System.nanoTime()基準）
+     * @return 最良の解の総移動距離
+     */
+    long run(long deadlineNanos) {
+        long startNanos = System.nanoTime();
+        double span = Math.max(1, deadlineNanos - startNanos);
+        this.currentMoves = this.plan.totalMoves();
+        this.bestMoves = this.currentMoves;
+        this.bestSaved = false;
+        double temp = this.startTemp;
+
+        while (true) {
+            // 時刻の取得は重いので、256回に1回だけ確認して温度を更新します。目標への到達もここで確認します。
+            if ((this.iterations & 255) == 0) {
+                long now = System.nanoTime();
+                if (now >= deadlineNanos) break;
+                if (this.targetMoves > 0 && this.bestMoves <= this.targetMoves) {
+                    this.reachedTarget = true;
+                    break;
+                }
+                double progress = (now - startNanos) / span;
+                temp = this.startTemp <= 0 ? 0 : this.startTemp * Math.pow(this.endTemp / this.startTemp, progress);
+            }
+            this.iterations++;
+            if (this.plan.count == 0) break;
+
+            // 受理の閾値を先に決めておき、各近傍は差分がこれ以下なら採用します。
+            double threshold = -temp * Math.log(nextDouble());
+            int roll = nextInt(100);
+            int kind = roll < 35 ? RELOCATE : roll < 60 ? SWAP : roll < 85 ? REVERSE : roll < 93 ? MERGE : SPLIT;
+            tryMove(kind, threshold);
+        }
+
+        // 最後の状態が最良でなければ、保存しておいた最良の解に戻します。
+        if (this.currentMoves != this.bestMoves && this.best != null) {
+            this.plan.copyFrom(this.best);
+        }
+        return this.bestMoves;
+    }
+
+    /**
+     * 種類kindの近傍を1つ乱数で作り、移動距離の差分がthreshold以下なら採用してplanを書き換えます。
+     * 差分は変更したトリップだけを再計算して求めるので、SelfCheckはこれを全てのトリップの再計算と比べます。
+     * @param kind 近傍の種類（RELOCATEなど）
+     * @param threshold 受理する差分の上限
+     * @return 採用した近傍の総移動距離の差分。採用しなかった（作れなかった・箱が潰れる・差分が大きい）場合はInteger.MAX_VALUE
+     */
+    int tryMove(int kind, double threshold) {
+        int delta;
+        switch (kind) {
+            case RELOCATE: delta = tryRelocate(threshold); break;
+            case SWAP: delta = trySwap(threshold); break;
+            case REVERSE: delta = tryReverse(threshold); break;
+            case MERGE: delta = tryMerge(threshold); break;
+            default: delta = trySplit(threshold); break;
+        }
+        if (delta == Integer.MAX_VALUE) return delta; // 不採用
+        this.accepted++;
+        this.currentMoves += delta;
+        if (this.currentMoves < this.bestMoves) {
+            this.bestMoves = this.currentMoves;
+            this.bestSaved = false;
+        }
+        return delta;
+    }
+
+    /**
+     * 差分deltaの近傍を受理するかを判定します。
+     * 悪化する近傍を受理する直前に、現在の解が最良ならスナップショットを保存します。
+     */
+    private boolean accept(int delta, double threshold) {
+        if (delta > threshold) return false;
+        if (delta > 0 && !this.bestSaved && this.currentMoves == this.bestMoves) {
+            if (this.best == null) this.best = new TripPlan(this.plan);
+            else this.best.copyFrom(this.plan);
+            this.bestSaved = true;
+        }
+        return true;
+    }
+
+    /** ある箱を取り出し、別のトリップ（または同じトリップ）の任意の位置へ挿入します。 */
+    private int tryRelocate(double threshold) {
+        TripPlan p = this.plan;
+        int t1 = nextInt(p.count);
+        int n1 = p.len[t1];
+        int i = nextInt(n1);
+        int id = p.trips[t1][i];
+        int t2 = nextInt(p.count);
+        if (t1 == t2) {
+            if (n1 < 2) return Integer.MAX_VALUE;
+            // 同じトリップ内での移動（拾う順の入れ替え）。jは移動後の位置で、n1 - 1なら末尾へ移します。
+            int j = nextInt(n1);
+            if (j == i) return Integer.MAX_VALUE;
+            int m = 0;
+            for (int k = 0; k < n1; k++) {
+                if (k == i) continue;
+                if (m == j) this.bufA[m++] = id;
+                this.bufA[m++] = p.trips[t1][k];
+            }
+            if (m < n1) this.bufA[m++] = id;
+            int c = TripState.tourLength(this.boxes, this.bufA, n1);
+            if (c < 0) return Integer.MAX_VALUE;
+            int delta = c - p.cost[t1];
+            if (!accept(delta, threshold)) return Integer.MAX_VALUE;
+            p.set(t1, this.bufA, n1, c);
+            return delta;
+        }
+        int n2 = p.len[t2];
+        int j = nextInt(n2 + 1);
+        // 取り出し元のトリップ
+        int a = 0;
+        for (int k = 0; k < n1; k++) {
+            if (k != i) this.bufA[a++] = p.trips[t1][k];
+        }
+        // 挿入先のトリップ
+        int b = 0;
+        for (int k = 0; k < n2; k++) {
+            if (k == j) this.bufB[b++] = id;
+            this.bufB[b++] = p.trips[t2][k];
+        }
+        if (j == n2) this.bufB[b++] = id;
+        int cb = TripState.tourLength(this.boxes, this.bufB, b);
+        if (cb < 0) return Integer.MAX_VALUE;
+        int ca = TripState.tourLength(this.boxes, this.bufA, a); // 箱を抜いたトリップは空になることもあります（距離0）。
+        if (ca < 0) return Integer.MAX_VALUE;
+        int delta = ca + cb - p.cost[t1] - p.cost[t2];
+        if (!accept(delta, threshold)) return Integer.MAX_VALUE;
+        p.set(t2, this.bufB, b, cb);
+        p.set(t1, this.bufA, a, ca);
+        if (a == 0) p.removeTrip(t1);
+        return delta;
+    }
+
+    /** 異なるトリップにある2つの箱を入れ替えます。 */
+    private int trySwap(double threshold) {
+        TripPlan p = this.plan;
+        if (p.count < 2) return Integer.MAX_VALUE;
+        int t1 = nextInt(p.count);
+        int t2 = nextInt(p.count - 1);
+        if (t2 >= t1) t2++;
+        int n1 = p.len[t1], n2 = p.len[t2];
+        int i = nextInt(n1), j = nextInt(n2);
+        System.arraycopy(p.trips[t1], 0, this.bufA, 0, n1);
+        System.arraycopy(p.trips[t2], 0, this.bufB, 0, n2);
+        int tmp = this.bufA[i];
+        this.bufA[i] = this.bufB[j];
+        this.bufB[j] = tmp;
+        int ca = TripState.tourLength(this.boxes, this.bufA, n1);
+        if (ca < 0) return Integer.MAX_VALUE;
+        int cb = TripState.tourLength(this.boxes, this.bufB, n2);
+        if (cb < 0) return Integer.MAX_VALUE;
+        int delta = ca + cb - p.cost[t1] - p.cost[t2];
+        if (!accept(delta, threshold)) return Integer.MAX_VALUE;
+        p.set(t1, this.bufA, n1, ca);
+        p.set(t2, this.bufB, n2, cb);
+        return delta;
+    }
+
+    /** トリップ内の区間[i, j]の拾う順を反転します。 */
+    private int tryReverse(double threshold) {
+        TripPlan p = this.plan;
+        int t = nextInt(p.count);
+        int n = p.len[t];
+        if (n < 2) return Integer.MAX_VALUE;
+        int i = nextInt(n), j = nextInt(n);
+        if (i == j) return Integer.MAX_VALUE;
+        if (i > j) { int tmp = i; i = j; j = tmp; }
+        System.arraycopy(p.trips[t], 0, this.bufA, 0, n);
+        for (int x = i, y = j; x < y; x++, y--) {
+            int tmp = this.bufA[x];
+            this.bufA[x] = this.bufA[y];
+            this.bufA[y] = tmp;
+        }
+        int c = TripState.tourLength(this.boxes, this.bufA, n);
+        if (c < 0) return Integer.MAX_VALUE;
+        int delta = c - p.cost[t];
+        if (!accept(delta, threshold)) return Integer.MAX_VALUE;
+        p.set(t, this.bufA, n, c);
+        return delta;
+    }
+
+    /** 2つのトリップを連結して1つのトリップにします（t1の箱を先に拾います）。 */
+    private int tryMerge(double threshold) {
+        TripPlan p = this.plan;
+        if (p.count < 2) return Integer.MAX_VALUE;
+        int t1 = nextInt(p.count);
+        int t2 = nextInt(p.count - 1);
+        if (t2 >= t1) t2++;
+        int n1 = p.len[t1], n2 = p.len[t2];
+        System.arraycopy(p.trips[t1], 0, this.bufA, 0, n1);
+        System.arraycopy(p.trips[t2], 0, this.bufA, n1, n2);
+        int c = TripState.tourLength(this.boxes, this.bufA, n1 + n2);
+        if (c < 0) return Integer.MAX_VALUE;
+        int delta = c - p.cost[t1] - p.cost[t2];
+        if (!accept(delta, threshold)) return Integer.MAX_VALUE;
+        p.set(t1, this.bufA, n1 + n2, c);
+        p.set(t2, this.bufA, 0, 0);
+        p.removeTrip(t2);
+        return delta;
+    }
+
+    /** 1つのトリップを、位置kの前後で2つのトリップに分けます。 */
+    private int trySplit(double threshold) {
+        TripPlan p = this.plan;
+        int t = nextInt(p.count);
+        int n = p.len[t];
+        if (n < 2) return Integer.MAX_VALUE;
+        int k = 1 + nextInt(n - 1);
+        System.arraycopy(p.trips[t], 0, this.bufA, 0, k);
+        System.arraycopy(p.trips[t], k, this.bufB, 0, n - k);
+        int ca = TripState.tourLength(this.boxes, this.bufA, k);
+        int cb = TripState.tourLength(this.boxes, this.bufB, n - k);
+        if (ca < 0 || cb < 0) return Integer.MAX_VALUE;
+        int delta = ca + cb - p.cost[t];
+        if (!accept(delta, threshold)) return Integer.MAX_VALUE;
+        p.set(t, this.bufA, k, ca);
+        int u = p.addTrip();
+        p.set(u, this.bufB, n - k, cb);
+        return delta;
+    }
+
+    private int nextInt(int bound) {
+        return (int) ((nextLong() >>> 33) % bound);
+    }
+
+    private double nextDouble() {
+        return ((nextLong() >>> 11) + 1) * 0x1.0p-53; // (0, 1] の一様乱数（log(0)を避けるため0を含みません）
+    }
+
+    private long nextLong() {
+        long x = this.rng;
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        return this.rng = x;
+    }
+}
+
+/**
+ * 1つのスレッドで次々にSolverを作って解くときに、インスタンスをまたいで使い回す作業領域。
+ * 拾う順序の最適化のDPの表（12箱で約4.7MB）と操作コマンドの列を、要求ごとに確保し直さずに済むようにします。
+ * スレッド間で共有はできないので、ワーカーのスレッドごとに1つ持たせてください。
+ */
+class SolverWorkspace {
+    private final ActionLog actions = new ActionLog();
+    private TripOrderOptimizer tripOrder;
+
+    /** 空にした操作コマンドの列を返します。 */
+    ActionLog actions() {
+        this.actions.clear();
+        return this.actions;
+    }
+
+    /**
+     * boxesの箱に切り替えた拾う順序の最適化を返します。部分集合DPを使う箱の数が前回と違えば作り直します。
+     * @param boxes 箱の属性テーブル
+     * @param exactLimit 部分集合DPを使うトリップの最大の箱の数
+     */
+    TripOrderOptimizer tripOrder(BoxTable boxes, int exactLimit) {
+        int limit = Math.max(1, Math.min(TripOrderOptimizer.MAX_EXACT_LIMIT, exactLimit));
+        if (this.tripOrder == null || this.tripOrder.exactLimit != limit) {
+            this.tripOrder = new TripOrderOptimizer(boxes, limit);
+        } else {
+            this.tripOrder.attach(boxes);
+        }
+        return this.tripOrder;
+    }
+}
+
+/**
+ * 1つのトリップの中で箱を拾う順序を最適化するクラス。
+ * 拾う順序は移動距離だけでなく、どの箱がどの箱の上に載るか（＝耐久力の減り方）も決めます。
+ *
+ * 箱の数がexactLimit以下なら、部分集合DPで「潰れる箱のない最短の順序」を求めます。
+ * DPはトリップを最後に拾う箱（スタックの一番上）から逆向きに組み立て、状態を
+ * （既に並べた箱の集合S、その中で最も下の箱last）とします。各状態には、
+ * 「lastを拾ってから(0,0)へ戻るまでの距離L」と「Sの箱がlastより下に積む箱へ与えるダメージの合計A」の組を持ちます。
+ * lastの下に箱bを差し込むと、bが受けるダメージはちょうどAで、bの残り距離は L + dist(last, b) になります。
+ * Lが小さいほど総距離が短く、Aが小さいほど下に積める箱が増えるので、状態ごとに(L, A)のパレート最適な組を
+ * 最大LABELS個まで保持します（それを超えた場合だけ、Lの大きい組を捨てる近似になります）。
+ * それより大きなトリップでは、箱の挿入位置の変更と区間の反転による局所探索で改善します。
+ *
+ * 距離・重さ・耐久力はトリップ内の番号で引ける配列に前計算し、DPの表も使い回すので、呼び出しごとの割り当てはありません。
+ * DPの表の大きさは箱の数に対して指数的に増える（12箱で約4.7MB）ので、コンストラクタでは確保せず、
+ * それまでに解いた最も長いトリップに合わせて必要になったときだけ大きくします。
+ * 焼きなまし法などの上位の探索から「このトリップを最適化し直す」処理として何度でも呼べます。
+ */
+class TripOrderOptimizer {
+    static final int DEFAULT_EXACT_LIMIT = 12; // 既定で部分集合DPを使うトリップの最大の箱の数
+    static final int MAX_EXACT_LIMIT = 15;     // 部分集合DPの表を確保できる最大の箱の数
+    private static final int LABELS = 6;       // 1つの状態に保持する(L, A)の組の最大数
+
+    private BoxTable boxes;
+    final int exactLimit;
+    private int stride;         // 確保済みの表で扱えるトリップの最大の箱の数（exactLimit以下）
+    // トリップ内の番号i, jで引く前計算の表
+    private int[] ids;          // 箱ID
+    private int[] dist;         // dist[i * stride + j]: 箱iと箱jのマンハッタン距離
+    private int[] home;         // 箱iから(0,0)までの距離
+    private long[] weight;      // 箱iの重さ
+    private long[] durability;  // 箱iの現在の耐久力
+    // DPの表。状態 (mask, last) の番号は mask * stride + last、組の番号は 状態 * LABELS + k です。
+    private int[] labelCount;   // 状態ごとの組の数
+    private int[] labelLen;     // L: lastを拾ってから(0,0)へ戻るまでの距離
+    private long[] labelLoad;   // A: lastより下に積む箱が受けるダメージ
+    private int[] labelParent;  // 1つ前の状態の (last * LABELS + k)。最初の箱なら-1
+    // 局所探索に使う作業用配列（それまでに改善した最も長いトリップの長さだけ確保します）
+    private int[] bufA = new int[0], bufB = new int[0];
+
+    // 呼び出しの集計（Stats.recordTripOrder() で集計します）
+    long exactCalls;     // 部分集合DPで解いた回数
+    long fallbackCalls;  // 局所探索で改善を試みた回数
+    long improvedCalls;  // 移動距離が短くなった回数
+
+    /**
+     * @param boxes 箱の属性テーブル
+     * @param exactLimit 部分集合DPを使うトリップの最大の箱の数（MAX_EXACT_LIMIT以下）
+     */
+    public TripOrderOptimizer(BoxTable boxes, int exactLimit) {
+        this.boxes = boxes;
+        this.exactLimit = Math.max(1, Math.min(MAX_EXACT_LIMIT, exactLimit));
+        allocateExact(Math.min(this.exactLimit, 4));
+    }
+
+    /**
+     * 別のインスタンスの箱の属性テーブルで使うように切り替えます。確保済みのDPの表はそのまま使い回します。
+     * @param boxes 箱の属性テーブル
+     */
+    void attach(BoxTable boxes) {
+        this.boxes = boxes;
+    }
+
+    /** 呼び出しの集計を0に戻します。 */
+    void resetCounts() {
+        this.exactCalls = 0;
+        this.fallbackCalls = 0;
+        this.improvedCalls = 0;
+    }
+
+    /** 部分集合DPの表を、k箱までのトリップを扱える大きさで確保し直します。 */
+    private void allocateExact(int k) {
+        this.stride = k;
+        this.ids = new int[k];
+        this.dist = new int[k * k];
+        this.home = new int[k];
+        this.weight = new long[k];
+        this.durability = new long[k];
+        int states = (1 << k) * k;
+        this.labelCount = new int[states];
+        this.labelLen = new int[states * LABELS];
+        this.labelLoad = new long[states * LABELS];
+        this.labelParent = new int[states * LABELS];
+    }
+
+    /**
+     * トリップseq[0..len-1]の拾う順序を最適化し、より短い順序が見つかればseqをその場で並べ替えます。
+     * @param seq 拾う順に並べた箱ID
+     * @param len トリップに含まれる箱の数
+     * @return 最適化後のトリップの移動距離（元の順序のままなら元の距離。元の順序で箱が潰れ、改善もできなければ-1）
+     */
+    int optimize(int[] seq, int len) {
+        int current = TripState.tourLength(this.boxes, seq, len);
+        if (len <= 1) return current;
+        if (len <= this.exactLimit) {
+            this.exactCalls++;
+            return solveExact(seq, len, current);
+        }
+        this.fallbackCalls++;
+        return improveLocally(seq, len, current);
+    }
+
+    /** 部分集合DPで、incumbentより短い順序を探します。 */
+    private int solveExact(int[] seq, int n, int incumbent) {
+        if (n > this.stride) allocateExact(n);
+        int stride = this.stride;
+        for (int i = 0; i < n; i++) {
+            int a = seq[i];
+            this.ids[i] = a;
+            this.home[i] = this.boxes.r[a] + this.boxes.c[a];
+            this.weight[i] = this.boxes.w[a];
+            this.durability[i] = this.boxes.dCurrent[a];
+            for (int j = 0; j < n; j++) {
+                int b = seq[j];
+                this.dist[i * stride + j] = Math.abs(this.boxes.r[a] - this.boxes.r[b]) + Math.abs(this.boxes.c[a] - this.boxes.c[b]);
+            }
+        }
+        int full = (1 << n) - 1;
+        java.util.Arrays.fill(this.labelCount, 0, (full + 1) * stride, 0);
+        // 元の順序の距離以上になる部分解は、最後まで並べても改善にならないので捨てます。
+        int bound = incumbent < 0 ? Integer.MAX_VALUE : incumbent;
+
+        // 一番上に載る箱（最後に拾う箱）はダメージを受けません。
+        for (int b = 0; b < n; b++) {
+            if (this.durability[b] <= 0) continue;
+            addLabel(1 << b, b, this.home[b], this.weight[b] * this.home[b], -1);
+        }
+        // 集合は要素を足すと必ず番号が大きくなるので、番号順に処理すれば遷移元は全て確定済みです。
+        for (int mask = 1; mask < full; mask++) {
+            for (int rest = mask; rest != 0; rest &= rest - 1) {
+                int last = Integer.numberOfTrailingZeros(rest);
+                int state = mask * stride + last;
+                int count = this.labelCount[state];
+                for (int k = 0; k < count; k++) {
+                    int label = state * LABELS + k;
+                    int len = this.labelLen[label];
+                    long load = this.labelLoad[label];
+                    for (int free = full & ~mask; free != 0; free &= free - 1) {
+                        int b = Integer.numberOfTrailingZeros(free);
+                        if (load >= this.durability[b]) continue; // bを下に差し込むとbが潰れます。
+                        int nextLen = len + this.dist[last * stride + b];
+                        // 残りの箱を全て回って(0,0)へ戻る距離の下限で枝刈りします。
+                        if (nextLen + remainingLowerBound(b, full & ~mask & ~(1 << b)) >= bound) continue;
+                        addLabel(mask | (1 << b), b, nextLen, load + this.weight[b] * nextLen, last * LABELS + k);
+                    }
+                }
+            }
+        }
+
+        // 全ての箱を並べた状態のうち、(0,0)から最初の箱までの距離を足した総距離が最小のものを選びます。
+        int bestLabel = -1, bestLast = -1, bestCost = bound;
+        for (int last = 0; last < n; last++) {
+            int state = full * stride + last;
+            for (int k = 0; k < this.labelCount[state]; k++) {
+                int cost = this.labelLen[state * LABELS + k] + this.home[last];
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestLast = last;
+                    bestLabel = k;
+                }
+            }
+        }
+        if (bestLast < 0) return incumbent;
+
+        // 最も下の箱（最初に拾う箱）から親をたどると、拾う順に箱が並びます。
+        int mask = full, last = bestLast, k = bestLabel;
+        for (int pos = 0; pos < n; pos++) {
+            seq[pos] = this.ids[last];
+            int parent = this.labelParent[(mask * stride + last) * LABELS + k];
+            mask ^= 1 << last;
+            if (parent < 0) break;
+            last = parent / LABELS;
+            k = parent % LABELS;
+        }
+        this.improvedCalls++;
+        return bestCost;
+    }
+
+    /** 箱bを拾った後、集合restの箱を全て拾って(0,0)へ戻るまでの距離の下限を返します。 */
+    private int remainingLowerBound(int b, int rest) {
+        int stride = this.stride;
+        int bound = this.home[b];
+        for (; rest != 0; rest &= rest - 1) {
+            int c = Integer.numberOfTrailingZeros(rest);
+            bound = Math.max(bound, this.dist[b * stride + c] + this.home[c]);
+        }
+        return bound;
+    }
+
+    /** 状態 (mask, last) に組 (len, load) を追加します。既存の組に支配される組は追加せず、新しい組に支配される組は取り除きます。 */
+    private void addLabel(int mask, int last, int len, long load, int parent) {
+        int state = mask * this.stride + last;
+        int base = state * LABELS;
+        int count = this.labelCount[state];
+        for (int k = 0; k < count; k++) {
+            if (this.labelLen[base + k] <= len && this.labelLoad[base + k] <= load) return;
+        }
+        int kept = 0, worst = -1;
+        for (int k = 0; k < count; k++) {
+            int l = this.labelLen[base + k];
+            long a = this.labelLoad[base + k];
+            if (len <= l && load <= a) continue; // 新しい組に支配されます。
+            this.labelLen[base + kept] = l;
+            this.labelLoad[base + kept] = a;
+            this.labelParent[base + kept] = this.labelParent[base + k];
+            if (worst < 0 || l > this.labelLen[base + worst]) worst = kept;
+            kept++;
+        }
+        int slot = kept;
+        if (kept == LABELS) {
+            // 満杯なら、距離の最も長い組より短い場合だけ置き換えます。
+            if (len >= this.labelLen[base + worst]) {
+                this.labelCount[state] = kept;
+                return;
+            }
+            slot = worst;
+        } else {
+            kept++;
+        }
+        this.labelLen[base + slot] = len;
+        this.labelLoad[base + slot] = load;
+        this.labelParent[base + slot] = parent;
+        this.labelCount[state] = kept;
+    }
+
+    /**
+     * 大きなトリップ向けの局所探索です。1つの箱を別の位置へ移す変更と、区間を反転する変更のうち、
+     * 潰れる箱がなく距離が短くなるものを見つけるたびに採用し、改善がなくなるまで繰り返します。
+     */
+    private int improveLocally(int[] seq, int len, int current) {
+        if (current < 0) return current;
+        if (this.bufA.length < len) {
+            this.bufA = new int[len];
+            this.bufB = new int[len];
+        }
+        boolean improved = true;
+        int start = current;
+        while (improved) {
+            improved = false;
+            for (int i = 0; i < len && !improved; i++) {
+                for (int j = 0; j < len && !improved; j++) {
+                    if (i == j) continue;
+                    // seq[i]を取り出して位置jへ入れた並びを作ります。
+                    int x = seq[i];
+                    for (int a = 0, b = 0; a < len; a++) {
+                        if (a == i) continue;
+                        if (b == j) this.bufA[b++] = x;
+                        this.bufA[b++] = seq[a];
+                    }
+                    if (j == len - 1) this.bufA[len - 1] = x;
+                    int c = TripState.tourLength(this.boxes, this.bufA, len);
+                    if (c >= 0 && c < current) {
+                        System.arraycopy(this.bufA, 0, seq, 0, len);
+                        current = c;
+                        improved = true;
+                    }
+                }
+            }
+            for (int i = 0; i < len && !improved; i++) {
+                for (int j = i + 1; j < len && !improved; j++) {
+                    System.arraycopy(seq, 0, this.bufB, 0, len);
+                    for (int a = i, b = j; a < b; a++, b--) {
+                        int tmp = this.bufB[a];
+                        this.bufB[a] = this.bufB[b];
+                        this.bufB[b] = tmp;
+                    }
+                    int c = TripState.tourLength(this.boxes, this.bufB, len);
+                    if (c >= 0 && c < current) {
+                        System.arraycopy(this.bufB, 0, seq, 0, len);
+                        current = c;
+                        improved = true;
+                    }
+                }
+            }
+        }
+        if (current < start) this.improvedCalls++;
+        return current;
+    }
+}
+
+/**
+ * 焼きなまし法の後のトリップの一覧を、置く操作（操作2）を使った中継で改善するクラス。
+ * 箱を1つずつ取り出し、別のトリップへ移すと全体の操作回数が減るなら移します（山登り法）。
+ * 移し先では、ふつうに拾う位置に加えて、「スタックの一番上の箱を隣の空きマスに置いてから箱を拾い、置いた箱を拾い直す」
+ * 中継つきの位置も試します。こうすると、経路の都合で後から拾う箱を一番上の箱の下に差し込めるので、
+ * 耐久力の低い箱や重い箱を含むトリップにも箱を追加できるようになります。
+ * 中継の置く・拾い直す操作は2回分の操作として数えます。
+ *
+ * 候補のトリップは、置く・拾う・移動を1操作ずつ再生するのと同じ結果になるsimulate()で判定します。
+ * 中継地点は、そのトリップより前のトリップか、同じトリップのより前の位置で拾われた箱のマスだけを使います。
+ * そのため、中継を使った後はトリップの順序を変えてはならず、中継地点として使われているマスの箱は動かしません。
+ * 空になったトリップも順序を保つために一覧に残します（実行しても操作は増えません）。
+ *
+ * 移した箱の多くは中継なしの位置へ移したもので、置く操作は増えません。中継つきの位置は、同じ位置に中継なしで拾うより
+ * 置く・拾い直す2操作と中継地点との往復の分だけ長くなるので、一番上の箱の耐久力が足りずに中継なしでは拾えない場合にしか選ばれません。
+ * 焼きなまし法の後のトリップではそうした移し先はほとんど残っておらず、出力に置く操作が現れないことも普通です
+ * （中継つきで移した数は staged、統計では staging_staged です）。
+ */
+class StagingOptimizer {
+    private final int n;
+    private final BoxTable boxes;
+    private final TripPlan plan;
+    private final int[] idAt;       // マス(r, c)にあった箱のID（idAt[r * n + c]、箱がなければ-1）
+    private final int[] tripOf;     // 各箱を運ぶトリップ
+    private final int[] stageUse;   // 各箱のマスが中継地点として使われている回数
+    private final int[] maxR, maxC; // 各トリップの経路が収まる長方形（(0,0)から(maxR, maxC)まで）
+
+    // 候補のトリップを組み立てるための作業用配列
+    private final int[] seqBuf, stageBuf, donorSeq, donorStage;
+    // simulate()の作業用配列
+    private final int[] hand;
+    private final long[] damage;
+    private final PrefixStateCache cache; // 計画のトリップの先頭部分を実行し終えた状態のキャッシュ
+
+    long moved;  // 移した箱の数（staged・saved とともに Stats.recordStaging() で集計します）
+    long staged; // そのうち、中継つきの位置へ移した箱の数（出力の置く操作の数になります）
+    long saved; // 減らした操作回数
+
+    /**
+     * @param n グリッドのサイズ
+     * @param boxes 箱の属性テーブル
+     * @param plan 改善するトリップの一覧（その場で書き換えます）
+     */
+    public StagingOptimizer(int n, BoxTable boxes, TripPlan plan) {
+        this(n, boxes, plan, SolverConfig.PREFIX_CACHE_BYTES);
+    }
+
+    /**
+     * 先頭部分のキャッシュに使うメモリの上限を指定するコンストラクタ（キャッシュの有無で結果が変わらないことの確認用）。
+     * @param n グリッドのサイズ
+     * @param boxes 箱の属性テーブル
+     * @param plan 改善するトリップの一覧（その場で書き換えます）
+     * @param cacheBytes 先頭部分のキャッシュに使うメモリの上限（バイト）。0ならキャッシュを使わず、毎回(0,0)からシミュレートします
+     */
+    StagingOptimizer(int n, BoxTable boxes, TripPlan plan, long cacheBytes) {
+        this.n = n;
+        this.boxes = boxes;
+        this.plan = plan;
+        this.idAt = new int[n * n];
+        java.util.Arrays.fill(this.idAt, -1);
+        for (int id = 0; id < boxes.size; id++) this.idAt[boxes.r[id] * n + boxes.c[id]] = id;
+        this.tripOf = new int[boxes.size];
+        this.stageUse = new int[boxes.size];
+        this.maxR = new int[plan.trips.length];
+        this.maxC = new int[plan.trips.length];
+        for (int t = 0; t < plan.count; t++) {
+            for (int k = 0; k < plan.len[t]; k++) {
+                this.tripOf[plan.trips[t][k]] = t;
+                int e = plan.stageAt(t, k);
+                if (e >= 0) this.stageUse[e]++;
+            }
+            updateBounds(t);
+        }
+        this.seqBuf = new int[boxes.size + 1];
+        this.stageBuf = new int[boxes.size + 1];
+        this.donorSeq = new int[boxes.size + 1];
+        this.donorStage = new int[boxes.size + 1];
+        this.hand = new int[boxes.size + 1];
+        this.damage = new long[boxes.size];
+        int longest = 0;
+        for (int t = 0; t < plan.count; t++) longest = Math.max(longest, plan.len[t]);
+        // 移動でトリップは長くなるので、今の最長のトリップより少し長い先頭部分まで保存できるようにします。
+        int stride = cacheBytes > 0 ? Math.min(SolverConfig.PREFIX_CACHE_MAX_LENGTH, longest + 4) : 0;
+        this.cache = new PrefixStateCache(plan.trips.length, stride, cacheBytes);
+    }
+
+    /** simulate()が使う先頭部分のキャッシュを返します（ヒット率などの集計用）。 */
+    PrefixStateCache cache() {
+        return this.cache;
+    }
+
+    /**
+     * 改善が見つからなくなるか制限時刻になるまで、全ての箱について移し先を探します。
+     * @param deadlineNanos 打ち切る時刻（System.nanoTime()基準）
+     * @return 減らした操作回数
+     */
+    long run(long deadlineNanos) {
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            for (int x = 0; x < this.boxes.size; x++) {
+                // 時刻の取得は重いので、64箱に1回だけ確認します。
+                if ((x & 63) == 0 && System.nanoTime() >= deadlineNanos) return this.saved;
+                if (tryMove(x)) improved = true;
+            }
+        }
+        return this.saved;
+    }
+
+    /**
+     * 箱xを今のトリップから取り出し、全体の操作回数が最も減る位置（中継つきを含む）へ移します。
+     * @return 移した場合はtrue
+     */
+    private boolean tryMove(int x) {
+        if (this.stageUse[x] > 0) return false; // 他のトリップの中継地点になっているマスの箱は動かしません。
+        int d = this.tripOf[x];
+        // xを取り除いた後のトリップdを作ります。
+        int dn = 0, xPos = 0;
+        for (int k = 0; k < this.plan.len[d]; k++) {
+            int id = this.plan.trips[d][k];
+            if (id == x) {
+                xPos = k;
+                continue;
+            }
+            this.donorSeq[dn] = id;
+            this.donorStage[dn++] = this.plan.stageAt(d, k);
+        }
+        int donorCost = dn == 0 ? 0 : simulate(this.donorSeq, this.donorStage, dn, d, xPos);
+        if (donorCost < 0) return false;
+        int removeGain = this.plan.cost[d] - donorCost;
+
+        int bestGain = 0, bestTrip = -1, bestPos = -1, bestStage = -1;
+        int xr = this.boxes.r[x], xc = this.boxes.c[x];
+        for (int t = 0; t < this.plan.count; t++) {
+            if (t == d || this.plan.len[t] == 0) continue;
+            // 経路は(0,0)から(maxR, maxC)の長方形に収まるので、その外にある箱を拾うには往復で2倍の寄り道が必要です。
+            int outside = Math.max(0, xr - this.maxR[t]) + Math.max(0, xc - this.maxC[t]);
+            if (removeGain - 2 * outside <= bestGain) continue;
+            int len = this.plan.len[t];
+            for (int k = 0; k <= len; k++) {
+                // 中継なしで拾う場合（option = -1）と、xの上下左右の空きマスを中継地点にする場合を試します。
+                for (int option = -1; option < 4; option++) {
+                    int e = -1;
+                    if (option >= 0) {
+                        if (k == 0) break; // 手が空なら中継は不要です。
+                        e = neighbor(xr, xc, option);
+                        if (e < 0 || !isEmptyAt(e, t, k)) continue;
+                    }
+                    buildInsertion(t, k, x, e);
+                    int cost = simulate(this.seqBuf, this.stageBuf, len + 1, t, k);
+                    if (cost < 0) continue;
+                    int gain = removeGain - (cost - this.plan.cost[t]);
+                    if (gain > bestGain) {
+                        bestGain = gain;
+                        bestTrip = t;
+                        bestPos = k;
+                        bestStage = e;
+                    }
+                }
+            }
+        }
+        if (bestTrip < 0) return false;
+
+        // 採用した移動を反映します。中継地点の使用回数は、書き換える2つのトリップの分を数え直します。
+        int t = bestTrip;
+        addStageUse(d, -1);
+        addStageUse(t, -1);
+        buildInsertion(t, bestPos, x, bestStage);
+        int hostCost = simulate(this.seqBuf, this.stageBuf, this.plan.len[t] + 1, t, bestPos);
+        this.plan.setStaged(t, this.seqBuf, this.stageBuf, this.plan.len[t] + 1, hostCost);
+        this.plan.setStaged(d, this.donorSeq, this.donorStage, dn, donorCost);
+        this.cache.invalidate(d);
+        this.cache.invalidate(t);
+        addStageUse(d, 1);
+        addStageUse(t, 1);
+        this.tripOf[x] = t;
+        updateBounds(d);
+        updateBounds(t);
+        this.moved++;
+        if (bestStage >= 0) this.staged++;
+        this.saved += bestGain;
+        return true;
+    }
+
+    /** トリップtのk番目にxを（中継地点eを使って）挿入した列をseqBuf・stageBufに作ります。 */
+    private void buildInsertion(int t, int k, int x, int e) {
+        int len = this.plan.len[t];
+        for (int i = 0, j = 0; i <= len; i++) {
+            if (i == k) {
+                this.seqBuf[i] = x;
+                this.stageBuf[i] = e;
+            } else {
+                this.seqBuf[i] = this.plan.trips[t][j];
+                this.stageBuf[i] = this.plan.stageAt(t, j);
+                j++;
+            }
+        }
+    }
+
+    /** マス(r, c)の上下左右のうちdir番目のマスにあった箱のIDを返します（グリッドの外や箱のないマスなら-1）。 */
+    private int neighbor(int r, int c, int dir) {
+        int nr = r + (dir == 0 ? -1 : dir == 1 ? 1 : 0);
+        int nc = c + (dir == 2 ? -1 : dir == 3 ? 1 : 0);
+        if (nr < 0 || nr >= this.n || nc < 0 || nc >= this.n) return -1;
+        return this.idAt[nr * this.n + nc];
+    }
+
+    /** トリップtのk番目の箱を拾う時点で、箱eのマスが空になっているかどうかを返します。 */
+    private boolean isEmptyAt(int e, int t, int k) {
+        int te = this.tripOf[e];
+        if (te != t) return te < t; // 前のトリップで運び出されていれば空です。
+        for (int i = 0; i < k; i++) {
+            if (this.plan.trips[t][i] == e) return true; // 同じトリップのより前の位置で拾われていれば空です。
+        }
+        return false;
+    }
+
+    /** トリップtの中継地点の使用回数をsignだけ増減します。 */
+    private void addStageUse(int t, int sign) {
+        for (int k = 0; k < this.plan.len[t]; k++) {
+            int e = this.plan.stageAt(t, k);
+            if (e >= 0) this.stageUse[e] += sign;
+        }
+    }
+
+    /** トリップtの経路が収まる長方形を計算し直します。 */
+    private void updateBounds(int t) {
+        int mr = 0, mc = 0;
+        for (int k = 0; k < this.plan.len[t]; k++) {
+            mr = Math.max(mr, this.boxes.r[this.plan.trips[t][k]]);
+            mc = Math.max(mc, this.boxes.c[this.plan.trips[t][k]]);
+        }
+        this.maxR[t] = mr;
+        this.maxC[t] = mc;
+    }
+
+    /**
+     * 中継つきのトリップを、操作を1つずつ再生するのと同じ規則でシミュレートします。
+     * 社長は(0,0)から出発し、各箱について「（中継があれば）中継地点へ行って一番上の箱を置く → 箱のマスへ行って拾う →
+     * （中継があれば）中継地点へ戻って置いた箱を拾い直す」を行い、最後に(0,0)へ戻ります。
+     * 移動のたびに、各箱はその上に積まれた箱の総重量×移動距離のダメージを受けます。
+     * 候補のトリップは挿入位置より前が元のトリップと同じなので、元のトリップの先頭部分を実行し終えた状態をPrefixStateCacheに保存しておき、
+     * 共通部分のうち保存済みの最も長い先頭部分の状態から残りだけをシミュレートします。
+     * 共通部分より後の状態は候補ごとに異なり再利用されないので、保存しません。
+     * @param seq 拾う箱のID
+     * @param stg 各箱の中継地点（箱ID、-1なら中継なし）
+     * @param len トリップに含まれる箱の数
+     * @param trip 先頭部分を共有している計画のトリップ（sharedが0なら使いません）
+     * @param shared 共通している先頭部分の長さ
+     * @return 移動距離と中継の操作回数の合計。箱が潰れるか、手が空で置けない場合は-1
+     */
+    int simulate(int[] seq, int[] stg, int len, int trip, int shared) {
+        PrefixStateCache cache = this.cache;
+        int limit = Math.min(Math.min(shared, len), cache.stride());
+        int slot = -1, start = 0;
+        int r = 0, c = 0, size = 0, cost = 0;
+        if (limit > 0) {
+            slot = cache.acquire(trip);
+            start = Math.min(cache.filled(slot), limit);
+        }
+        if (start > 0) {
+            r = cache.row(slot, start);
+            c = cache.col(slot, start);
+            size = cache.handSize(slot, start);
+            cost = cache.cost(slot, start);
+            cache.restore(slot, start, this.hand, this.damage);
+            cache.hits++;
+            cache.reusedSteps += start;
+        } else {
+            cache.misses++;
+        }
+        cache.simulatedSteps += len - start;
+        for (int k = start; k < len; k++) this.damage[seq[k]] = 0;
+        for (int k = start; k < len; k++) {
+            int id = seq[k], e = stg[k];
+            int parked = -1;
+            if (e >= 0) {
+                int er = this.boxes.r[e], ec = this.boxes.c[e];
+                // 縦に移動してから横に移動するので、列0から行0へ向かうと途中で(0,0)を通り、手の箱が全て運び出されてしまいます。
+                if (size == 0 || (c == 0 && er == 0)) return -1;
+                int dist = Math.abs(er - r) + Math.abs(ec - c);
+                if (!carry(size, dist)) return -1;
+                cost += dist + 2; // 移動と、置く・拾い直す操作
+                r = er;
+                c = ec;
+                parked = this.hand[--size];
+            }
+            int dist = Math.abs(this.boxes.r[id] - r) + Math.abs(this.boxes.c[id] - c);
+            if (!carry(size, dist)) return -1;
+            cost += dist;
+            r = this.boxes.r[id];
+            c = this.boxes.c[id];
+            this.hand[size++] = id;
+            if (parked >= 0) {
+                dist = Math.abs(this.boxes.r[e] - r) + Math.abs(this.boxes.c[e] - c);
+                if (!carry(size, dist)) return -1;
+                cost += dist;
+                r = this.boxes.r[e];
+                c = this.boxes.c[e];
+                this.hand[size++] = parked;
+            }
+            if (k < limit && cache.filled(slot) == k) cache.store(slot, k + 1, r, c, size, cost, this.hand, this.damage);
+        }
+        int dist = r + c;
+        if (!carry(size, dist)) return -1;
+        return cost + dist;
+    }
+
+    /** 手に持ったsize個の箱をdistマス運んだときのダメージを加え、全ての箱が潰れずに済むかどうかを返します。 */
+    private boolean carry(int size, int dist) {
+        long above = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            int id = this.hand[i];
+            this.damage[id] += above * dist;
+            if (this.damage[id] >= this.boxes.dInitial[id]) return false;
+            above += this.boxes.w[id];
+        }
+        return true;
+    }
+}
+
+/**
+ * 中継つきトリップのシミュレーション（StagingOptimizer.simulate()）の途中状態を、計画のトリップの先頭部分ごとに覚えておくキャッシュ。
+ * 先頭部分が同じトリップは、その部分を実行し終えた時点の状態（現在位置・手の箱とそれぞれのダメージ・それまでの操作回数）が同じなので、
+ * 保存しておいた状態から残りだけをシミュレートすれば済みます。
+ *
+ * キーは（トリップの番号, 先頭部分の長さ）です。トリップごとに1つのスロットを割り当て、先頭部分の状態を短い方から連続して保存し、
+ * トリップが書き換えられたらinvalidate()でそのスロットを空にします。スロットの数はコンストラクタで与えるメモリの上限で決まり、
+ * 足りなくなったらCLOCK方式で、最後に使われてから参照されていないトリップのスロットを追い出します。
+ *
+ * 既定で動く探索では使いません。貪欲法とビームサーチはTripStateに箱を1つずつ積みながら判定するので、
+ * 先頭部分の状態は作りながらそのまま引き継がれています。焼きなまし法は中継を使わないトリップだけを扱い、
+ * 変更したトリップをTripState.tourLength()で1回なぞるだけなので、保存した状態を探して書き戻す手間の方が大きくなります。
+ * 中継の探索（-Dstaging=true）だけが、同じトリップの挿入位置と中継地点を変えた候補を何十回もシミュレートするので、このキャッシュが効きます。
+ */
+class PrefixStateCache {
+    private static final int META = 4; // 1状態あたりのmetaの要素数（行, 列, 手の箱の数, 操作回数）
+
+    private final int stride;          // 1スロットに保存できる先頭部分の長さの上限（手の箱の数もこれ以下です）
+    private final int[] slotOf;        // 各トリップのスロット（なければ-1）
+    private final int[] owner;         // 各スロットを使っているトリップ（空きなら-1）
+    private final int[] filled;        // 各スロットに保存済みの先頭部分の長さ（1からfilledまでの状態があります）
+    private final boolean[] referenced; // CLOCK方式の参照ビット
+    private final int[] meta;          // meta[(slot*stride + k-1)*META + i] = 長さkの先頭部分を実行し終えた状態
+    private final int[] hand;          // hand[(slot*stride + k-1)*stride + i] = その状態の手のi段目の箱
+    private final long[] damage;       // その箱が受けたダメージ
+    private int clockHand;             // 次に追い出しを調べるスロット
+
+    long hits;           // 保存した状態から再開できた回数
+    long misses;         // (0,0)からシミュレートした回数
+    long evictions;      // 追い出したスロットの数
+    long reusedSteps;    // 再開によって飛ばせた箱の数
+    long simulatedSteps; // 実際にシミュレートした箱の数
+
+    /**
+     * @param trips トリップの番号の上限
+     * @param stride 保存する先頭部分の長さの上限
+     * @param capacityBytes 保存する状態に使うメモリの上限（バイト）
+     */
+    PrefixStateCache(int trips, int stride, long capacityBytes) {
+        this.stride = stride;
+        long slotBytes = stride * (4L * META + stride * (4L + 8L)) + 16;
+        int slots = (int) Math.max(1, Math.min(trips, capacityBytes / slotBytes));
+        this.slotOf = new int[trips];
+        java.util.Arrays.fill(this.slotOf, -1);
+        this.owner = new int[slots];
+        java.util.Arrays.fill(this.owner, -1);
+        this.filled = new int[slots];
+        this.referenced = new boolean[slots];
+        this.meta = new int[slots * stride * META];
+        this.hand = new int[slots * stride * stride];
+        this.damage = new long[slots * stride * stride];
+    }
+
+    /** 保存できる先頭部分の長さの上限を返します。 */
+    int stride() {
+        return this.stride;
+    }
+
+    /**
+     * トリップtripのスロットを返します。まだなければ、空きスロットかCLOCK方式で追い出したスロットを割り当てます。
+     */
+    int acquire(int trip) {
+        int slot = this.slotOf[trip];
+        if (slot >= 0) {
+            this.referenced[slot] = true;
+            return slot;
+        }
+        // 参照ビットの立っているスロットは、ビットを下ろして1周分だけ残します。
+        while (this.referenced[this.clockHand]) {
+            this.referenced[this.clockHand] = false;
+            this.clockHand = (this.clockHand + 1) % this.owner.length;
+        }
+        slot = this.clockHand;
+        this.clockHand = (this.clockHand + 1) % this.owner.length;
+        if (this.owner[slot] >= 0) {
+            this.slotOf[this.owner[slot]] = -1;
+            this.evictions++;
+        }
+        this.owner[slot] = trip;
+        this.slotOf[trip] = slot;
+        this.filled[slot] = 0;
+        return slot;
+    }
+
+    /** トリップtripが書き換えられたので、保存した状態を捨てます。 */
+    void invalidate(int trip) {
+        int slot = this.slotOf[trip];
+        if (slot >= 0) this.filled[slot] = 0;
+    }
+
+    /** スロットに保存済みの先頭部分の長さを返します。 */
+    int filled(int slot) {
+        return this.filled[slot];
+    }
+
+    /** 長さkの先頭部分を実行し終えた時点の行座標を返します。 */
+    int row(int slot, int k) {
+        return this.meta[(slot * this.stride + k - 1) * META];
+    }
+
+    /** 長さkの先頭部分を実行し終えた時点の列座標を返します。 */
+    int col(int slot, int k) {
+        return this.meta[(slot * this.stride + k - 1) * META + 1];
+    }
+
+    /** 長さkの先頭部分を実行し終えた時点の手の箱の数を返します。 */
+    int handSize(int slot, int k) {
+        return this.meta[(slot * this.stride + k - 1) * META + 2];
+    }
+
+    /** 長さkの先頭部分までの移動距離と中継の操作回数の合計を返します。 */
+    int cost(int slot, int k) {
+        return this.meta[(slot * this.stride + k - 1) * META + 3];
+    }
+
+    /** 長さkの先頭部分を実行し終えた時点の手の箱をhandOutに、各箱のダメージをdamageAt（箱IDで引く配列）に書き戻します。 */
+    void restore(int slot, int k, int[] handOut, long[] damageAt) {
+        int size = handSize(slot, k), p = (slot * this.stride + k - 1) * this.stride;
+        for (int i = 0; i < size; i++) {
+            int id = this.hand[p + i];
+            handOut[i] = id;
+            damageAt[id] = this.damage[p + i];
+        }
+    }
+
+    /**
+     * 長さk（保存済みの長さ+1、stride以下）の先頭部分を実行し終えた状態を保存します。
+     * @param damageAt 箱IDで引くダメージの配列
+     */
+    void store(int slot, int k, int r, int c, int size, int cost, int[] handIn, long[] damageAt) {
+        int m = (slot * this.stride + k - 1) * META;
+        this.meta[m] = r;
+        this.meta[m + 1] = c;
+        this.meta[m + 2] = size;
+        this.meta[m + 3] = cost;
+        int p = (slot * this.stride + k - 1) * this.stride;
+        for (int i = 0; i < size; i++) {
+            int id = handIn[i];
+            this.hand[p + i] = id;
+            this.damage[p + i] = damageAt[id];
+        }
+        this.filled[slot] = k;
+    }
+}
+
+/**
+ * Solverの振る舞いを切り替える設定をまとめたクラス。
+ * 並列実行（Portfolio）では、評価関数・乱数シード・揺らぎの大きさが異なる設定を各Solverに与えて、
+ * 探索の多様性を確保します。
+ */
+class SolverConfig {
+    static final int EVAL_DIST_PER_WEIGHT = 0;   // (移動距離) / (箱の重さ)
+    static final int EVAL_DETOUR_PER_WEIGHT = 1; // (寄り道で増える帰還距離) / (箱の重さ)
+    static final int EVAL_NEAREST = 2;           // 最も近い箱（同じ距離なら重い箱）
+    static final int EVAL_MODES = 3;             // 評価関数の種類の数
+
+    // グリッドの一辺がこれを超えると、既定でセクタに分けて計画します。
+    static final int AUTO_SECTOR_MIN_N = 100;
+    // セクタに分けるときの既定のセクタの一辺
+    static final int DEFAULT_SECTOR_SIZE = 50;
+    // 箱の数がこれを超えると、焼きなまし法は悪化する近傍を受理しない山登り法として動かします
+    // （最良解のスナップショットのコピーが箱の数に比例して重くなるため）。
+    static final int ANNEAL_MAX_BOXES = 50_000;
+    // 中継を使う場合に、改善フェーズの時間のうち中継の探索に回す割合
+    static final double STAGING_TIME_SHARE = 0.1;
+    // 改善フェーズの時間のうち、貪欲法を設定の評価関数で行う割合（それを過ぎた分は近い順の貪欲法で計画します）
+    static final double PLAN_TIME_SHARE = 0.3;
+    // セクタに分けて計画するときに、まだ始めていないセクタの箱を位置の順になめて計画するために取っておく、箱1個あたりの時間
+    // （ナノ秒）。JITの済んでいない1コアでN=1000の全ての箱をなめるのに約1秒かかったのに合わせています。
+    static final long SWEEP_NANOS_PER_BOX = 1000;
+    // 近い順の貪欲法で、1回の候補選びで潰れると判定した箱がこの数に達したらそのサイクルを終えます
+    static final int FAST_REJECT_LIMIT = 32;
+    // 改善フェーズの時間のうち、最後にトリップ内の拾う順序を最適化し直すために取っておく割合
+    static final double ORDER_TIME_SHARE = 0.02;
+    // ビームサーチで計画に使ってよい、改善フェーズの時間の割合
+    static final double BEAM_TIME_SHARE = 0.3;
+    // ビームサーチで1つの部分トリップから展開する候補の数
+    static final int BEAM_EXPAND = 4;
+    // ビーム幅の上限。並べ替えのキーの下位20ビットに子の番号を入れるので、子の数（幅の2乗）が2^20未満に収まる幅までにします。
+    static final int MAX_BEAM_WIDTH = 1023;
+    // 中継の探索で使う、シミュレーションの先頭部分のキャッシュのメモリ上限（バイト）と、保存する先頭部分の長さの上限
+    static final long PREFIX_CACHE_BYTES = 4L << 20;
+    static final int PREFIX_CACHE_MAX_LENGTH = 64;
+
+    int evalMode = EVAL_DIST_PER_WEIGHT; // 貪欲法の評価関数
+    long seed = 0x9E3779B97F4A7C15L;     // 焼きなまし法と評価値の揺らぎに使う乱数のシード
+    double jitter = 0;                   // 評価値に掛ける揺らぎの大きさ（0なら揺らぎなし）
+    long deadlineNanos;                  // 改善フェーズを打ち切る時刻（System.nanoTime()基準）
+    int sectorSize = 0;                  // 計画時のセクタの一辺（0ならグリッドの大きさから自動で決めます）
+    // 改善フェーズの最後に、置く操作を使った中継で箱をトリップ間で移すかどうか（-Dstaging=trueで有効）。
+    // 焼きなまし法の後では中継で減る操作回数はわずかで（移す箱もほとんどが中継なしの位置へ移ります）、
+    // 既定では焼きなまし法に全ての時間を使います。
+    boolean staging = Boolean.getBoolean("staging");
+    int exactOrderLimit = TripOrderOptimizer.DEFAULT_EXACT_LIMIT; // 拾う順序を部分集合DPで厳密に求めるトリップの最大の箱の数
+    // トリップの構築に使うビーム幅（1なら貪欲法。-DbeamWidth=...で指定し、MAX_BEAM_WIDTHを超える値はそこで抑えます）。
+    int beamWidth = Math.max(1, Math.min(MAX_BEAM_WIDTH, Integer.getInteger("beamWidth", 1)));
+    // 総移動回数の下限（LowerBound）に対するギャップがこれ以下になったら、制限時間を待たずに改善を打ち切ります
+    // （-DgapTarget=0.3 なら下限の1 / (1 - 0.3)倍以下。0なら打ち切りません）。
+    // 下限は容量の見積もりが甘く、N=20の生成ケースでもギャップは貪欲法で0.6前後、焼きなまし法の後でも0.4前後あります。
+    // そのため0.5のような目標では焼きなまし法が始まってすぐに打ち切られ、制限時間まで続けた場合より出力が悪くなります。
+    // 浮いた時間を他のケースに回せるBatchRunnerのためのもので、1ケースだけを解くMainでは0のままにしてください。
+    double gapTarget = Double.parseDouble(System.getProperty("gapTarget", "0"));
+
+    /**
+     * 既定の評価関数で、今からtimeLimitMillisミリ秒後に改善フェーズを打ち切る設定を作ります。
+     * @param timeLimitMillis 改善フェーズの制限時間（ミリ秒）。0なら貪欲法の結果をそのまま使います。
+     */
+    static SolverConfig withTimeLimit(long timeLimitMillis) {
+        SolverConfig config = new SolverConfig();
+        config.deadlineNanos = System.nanoTime() + timeLimitMillis * 1_000_000L;
+        return config;
+    }
+
+    /**
+     * 並列実行のindex番目のSolverに与える設定を作ります。
+     * 0番目は単独実行時と同じ既定の設定で、それ以降は評価関数を順に切り替え、
+     * 一巡するごとに評価値の揺らぎを大きくしていきます。シードは全て異なります。
+     * @param index 並列実行の中での番号（0から）
+     * @param deadlineNanos 全てのSolverに共通の打ち切り時刻
+     */
+    static SolverConfig portfolioMember(int index, long deadlineNanos) {
+        SolverConfig config = new SolverConfig();
+        config.evalMode = index % EVAL_MODES;
+        config.jitter = 0.05 * (index / EVAL_MODES);
+        config.seed = 0x9E3779B97F4A7C15L * (index + 1);
+        config.deadlineNanos = deadlineNanos;
+        return config;
+    }
+}
+
+/**
+ * 設定の異なる複数のSolverを並列に実行し、最も操作回数の少ない結果を選ぶクラス。
+ * 各Solverは自分専用の状態（手持ちの箱・操作コマンド・グリッド）を持ち、共有するのは読み取り専用の入力配列だけです。
+ * 全てのSolverが同じ打ち切り時刻まで改善を続けるので、Solverの数はスレッド数と同じにします。
+ */
+class Portfolio {
+    /**
+     * threads個のSolverを並列に実行し、最も操作回数の少なかったSolverを返します。
+     * @param n グリッドのサイズ
+     * @param weights 各マスの箱の重さを表す2次元配列
+     * @param durabilities 各マスの箱の耐久力を表す2次元配列
+     * @param deadlineNanos 全てのSolverに共通の打ち切り時刻（System.nanoTime()基準）
+     * @param threads 並列に実行するSolverの数
+     * @return solve()済みのSolverのうち、操作回数が最小のもの（同点なら番号の小さいもの）
+     */
+    static Solver solve(int n, int[][] weights, int[][] durabilities, long deadlineNanos, int threads) {
+        return solve(n, weights, durabilities, deadlineNanos, threads, null);
+    }
+
+    /**
+     * 全てのSolverに同じ初期解を与えて並列に実行します。各Solverは乱数のシードだけが異なる焼きなまし法で初期解を改善します。
+     * @param initial 初期解（nullなら各Solverが貪欲法で作ります）
+     * @return solve()済みのSolverのうち、操作回数が最小のもの（同点なら番号の小さいもの）
+     */
+    static Solver solve(int n, int[][] weights, int[][] durabilities, long deadlineNanos, int threads, TripPlan initial) {
+        if (threads <= 1) {
+            // 1スレッドならスレッドプールを作らずに、既定の設定でそのまま実行します。
+            Solver solver = new Solver(n, weights, durabilities, SolverConfig.portfolioMember(0, deadlineNanos));
+            solver.solve(initial);
+            if (Stats.ENABLED) Stats.recordSolution(solver);
+            return solver;
+        }
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(threads);
+        try {
+            java.util.List<java.util.concurrent.ForkJoinTask<Solver>> tasks = new java.util.ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                SolverConfig config = SolverConfig.portfolioMember(i, deadlineNanos);
+                tasks.add(pool.submit(() -> {
+                    Solver solver = new Solver(n, weights, durabilities, config);
+                    solver.solve(initial);
+                    return solver;
+                }));
+            }
+            Solver best = null;
+            for (java.util.concurrent.ForkJoinTask<Solver> task : tasks) {
+                Solver solver = task.join();
+                if (best == null || solver.operationCount() < best.operationCount()) {
+                    best = solver;
+                }
+            }
+            // 結果の集計は、インスタンスごとに選んだSolverの分だけ加えます。
+            if (Stats.ENABLED) Stats.recordSolution(best);
+            return best;
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
+
+/**
+ * 計画の中身と各フェーズの所要時間を数える計測用のクラス。-Dstats=true で有効になり、
+ * 実行の終わりにreport()が集計をJSONの1行として標準エラー出力（-Dstats.file=... を指定した場合はそのファイル）へ書き出します。
+ * ENABLEDはstatic finalなので、無効のときはJITが計数の分岐ごと取り除き、ホットループには何も残りません。
+ * 貪欲法などの内側のループは各プランナーのフィールドで数え、計画の終わりに1回だけここへ足し込みます。
+ * フェーズの区切りでは、計測の有無にかかわらずJFRのイベント（ahc.Phase, ahc.Solve）も記録します
+ * （JFRが記録していなければcommit()はほぼ何もしません）。
+ */
+final class Stats {
+    static final boolean ENABLED = Boolean.getBoolean("stats");
+
+    /** 時間を測るフェーズ。 */
+    enum Phase { PARSE, PLAN, ANNEAL, REORDER, STAGING, EMIT, OUTPUT }
+
+    private static final int TRIP_HISTOGRAM_SIZE = 32; // トリップの箱の数のヒストグラムの大きさ（最後の区間はそれ以上をまとめます）
+
+    static final java.util.concurrent.atomic.LongAdder feasibilityChecks = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder feasibilityRejects = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder greedySteps = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder candidatesScanned = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder trips = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder tripBoxes = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder fastTrips = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder sweepTrips = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder annealIterations = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder annealAccepted = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder tripOrderExact = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder tripOrderLocal = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder tripOrderImproved = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder operations = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder lowerBoundMoves = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder plannedMoves = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder gapStops = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder stagingMoved = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder stagingStaged = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder stagingSaved = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder prefixCacheHits = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder prefixCacheMisses = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder prefixCacheEvictions = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder prefixReusedSteps = new java.util.concurrent.atomic.LongAdder();
+    static final java.util.concurrent.atomic.LongAdder prefixSimulatedSteps = new java.util.concurrent.atomic.LongAdder();
+    private static final java.util.concurrent.atomic.AtomicLongArray tripHistogram =
+            new java.util.concurrent.atomic.AtomicLongArray(TRIP_HISTOGRAM_SIZE);
+    private static final java.util.concurrent.atomic.AtomicLongArray phaseCount =
+            new java.util.concurrent.atomic.AtomicLongArray(Phase.values().length);
+    private static final java.util.concurrent.atomic.AtomicLongArray phaseNanos =
+            new java.util.concurrent.atomic.AtomicLongArray(Phase.values().length);
+    private static final java.util.concurrent.atomic.AtomicLongArray phaseBytes =
+            new java.util.concurrent.atomic.AtomicLongArray(Phase.values().length);
+
+    private Stats() {}
+
+    /**
+     * 計測中のフェーズ。begin()で作り、同じスレッドでend()を呼びます。
+     * 割り当てたバイト数はそのスレッドの分だけなので、並列に計画するセクタの分はPLANに含まれません。
+     */
+    static final class Span {
+        private final Phase phase;
+        private final PhaseEvent event = new PhaseEvent();
+        private final long startNanos;
+        private final long startBytes;
+
+        private Span(Phase phase) {
+            this.phase = phase;
+            this.event.phase = phase.name();
+            this.event.begin();
+            this.startNanos = ENABLED ? System.nanoTime() : 0;
+            this.startBytes = ENABLED ? allocatedBytes() : 0;
+        }
+
+        /** フェーズを終え、経過時間と割り当てたバイト数を集計に加えます。 */
+        void end() {
+            this.event.commit();
+            if (!ENABLED) return;
+            int p = this.phase.ordinal();
+            phaseCount.incrementAndGet(p);
+            phaseNanos.addAndGet(p, System.nanoTime() - this.startNanos);
+            long bytes = allocatedBytes();
+            if (bytes >= 0 && this.startBytes >= 0) phaseBytes.addAndGet(p, bytes - this.startBytes);
+        }
+    }
+
+    /** フェーズの計測を始めます。 */
+    static Span begin(Phase phase) {
+        return new Span(phase);
+    }
+
+    /** 計画した1つのトリップを集計に加えます。 */
+    static void recordTrip(int boxes) {
+        trips.increment();
+        tripBoxes.add(boxes);
+        tripHistogram.incrementAndGet(Math.min(boxes, TRIP_HISTOGRAM_SIZE - 1));
+    }
+
+    /**
+     * 1つのインスタンスについて選んだ解の操作回数・総移動回数の下限・総移動回数と、ギャップの目標で打ち切ったかどうかを加えます。
+     * 複数のSolverを並列に実行した場合も、インスタンスごとに1回だけ呼びます。
+     */
+    static void recordSolution(Solver solver) {
+        operations.add(solver.operationCount());
+        lowerBoundMoves.add(solver.lowerBound());
+        plannedMoves.add(solver.plannedMoves());
+        if (solver.stoppedAtGap()) gapStops.increment();
+    }
+
+    /** 拾う順序の最適化で、部分集合DPと局所探索を使った回数と、移動距離が短くなった回数を加えます。 */
+    static void recordTripOrder(TripOrderOptimizer optimizer) {
+        tripOrderExact.add(optimizer.exactCalls);
+        tripOrderLocal.add(optimizer.fallbackCalls);
+        tripOrderImproved.add(optimizer.improvedCalls);
+    }
+
+    /** 中継の探索で移した箱の数（うち中継つきの数）・減らした操作回数と、使った先頭部分のキャッシュの集計を加えます。 */
+    static void recordStaging(StagingOptimizer staging) {
+        stagingMoved.add(staging.moved);
+        stagingStaged.add(staging.staged);
+        stagingSaved.add(staging.saved);
+        PrefixStateCache cache = staging.cache();
+        prefixCacheHits.add(cache.hits);
+        prefixCacheMisses.add(cache.misses);
+        prefixCacheEvictions.add(cache.evictions);
+        prefixReusedSteps.add(cache.reusedSteps);
+        prefixSimulatedSteps.add(cache.simulatedSteps);
+    }
+
+    /** 現在のスレッドがこれまでに割り当てたバイト数を返します。取得できないJVMでは-1を返します。 */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    /** 集計をJSONの1行にして返します。 */
+    static String summary() {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("{\"feasibility_checks\":").append(feasibilityChecks.sum());
+        sb.append(",\"feasibility_rejects\":").append(feasibilityRejects.sum());
+        sb.append(",\"greedy_steps\":").append(greedySteps.sum());
+        sb.append(",\"candidates_scanned\":").append(candidatesScanned.sum());
+        sb.append(",\"trips\":").append(trips.sum());
+        sb.append(",\"trip_boxes\":").append(tripBoxes.sum());
+        sb.append(",\"fast_trips\":").append(fastTrips.sum());
+        sb.append(",\"sweep_trips\":").append(sweepTrips.sum());
+        sb.append(",\"trip_histogram\":[");
+        for (int k = 0; k < TRIP_HISTOGRAM_SIZE; k++) {
+            if (k > 0) sb.append(',');
+            sb.append(tripHistogram.get(k));
+        }
+        sb.append("],\"anneal_iterations\":").append(annealIterations.sum());
+        sb.append(",\"anneal_accepted\":").append(annealAccepted.sum());
+        sb.append(",\"trip_order_exact\":").append(tripOrderExact.sum());
+        sb.append(",\"trip_order_local\":").append(tripOrderLocal.sum());
+        sb.append(",\"trip_order_improved\":").append(tripOrderImproved.sum());
+        sb.append(",\"operations\":").append(operations.sum());
+        sb.append(",\"lower_bound_moves\":").append(lowerBoundMoves.sum());
+        sb.append(",\"planned_moves\":").append(plannedMoves.sum());
+        sb.append(",\"gap_stops\":").append(gapStops.sum());
+        sb.append(",\"staging_moved\":").append(stagingMoved.sum());
+        sb.append(",\"staging_staged\":").append(stagingStaged.sum());
+        sb.append(",\"staging_saved\":").append(stagingSaved.sum());
+        sb.append(",\"prefix_cache_hits\":").append(prefixCacheHits.sum());
+        sb.append(",\"prefix_cache_misses\":").append(prefixCacheMisses.sum());
+        sb.append(",\"prefix_cache_evictions\":").append(prefixCacheEvictions.sum());
+        sb.append(",\"prefix_reused_steps\":").append(prefixReusedSteps.sum());
+        sb.append(",\"prefix_simulated_steps\":").append(prefixSimulatedSteps.sum());
+        sb.append(",\"phases\":{");
+        for (Phase phase : Phase.values()) {
+            int p = phase.ordinal();
+            if (p > 0) sb.append(',');
+            sb.append('"').append(phase.name().toLowerCase(java.util.Locale.ROOT)).append("\":{\"count\":").append(phaseCount.get(p));
+            sb.append(",\"nanos\":").append(phaseNanos.get(p));
+            sb.append(",\"alloc_bytes\":").append(phaseBytes.get(p)).append('}');
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    /** 計測が有効なら、集計を -Dstats.file で指定したファイル（なければ標準エラー出力）へ書き出します。 */
+    static void report() throws java.io.IOException {
+        if (!ENABLED) return;
+        String file = System.getProperty("stats.file");
+        if (file == null) {
+            System.err.println(summary());
+        } else {
+            java.nio.file.Files.write(java.nio.file.Paths.get(file),
+                    (summary() + "\n").getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        }
+    }
+}
+
+/** 1つのフェーズの所要時間を表すJFRのイベント。 */
+@jdk.jfr.Name("ahc.Phase")
+@jdk.jfr.Label("Solver Phase")
+@jdk.jfr.Category("AHC")
+class PhaseEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Phase")
+    String phase;
+}
+
+/** 1つのSolverの実行結果を表すJFRのイベント。 */
+@jdk.jfr.Name("ahc.Solve")
+@jdk.jfr.Label("Solve")
+@jdk.jfr.Category("AHC")
+class SolveEvent extends jdk.jfr.Event {
+    @jdk.jfr.Label("Grid Size")
+    int n;
+    @jdk.jfr.Label("Seed")
+    long seed;
+    @jdk.jfr.Label("Trips")
+    int trips;
+    @jdk.jfr.Label("Moves After Greedy")
+    long greedyMoves;
+    @jdk.jfr.Label("Moves")
+    long moves;
+    @jdk.jfr.Label("Lower Bound On Moves")
+    long lowerBound;
+    @jdk.jfr.Label("Optimality Gap")
+    double gap;
+    @jdk.jfr.Label("Stopped At Gap Target")
+    boolean stoppedAtGap;
+    @jdk.jfr.Label("Operations")
+    long operations;
+    @jdk.jfr.Label("Anneal Iterations")
+    long annealIterations;
+}
@@ -0,0 +1,763 @@
+/**
+ * 答えの分かっている小さなケースで、採点器や拾う順序の最適化などの部品が正しく動くかを確かめる自己チェック用のクラス。
+ * 後からルールの解釈や再生の処理を変えたときに、結果が変わってしまったことに気づけるようにします。
+ *
+ * 使い方: java SelfCheck
+ *   全てのチェックが通れば件数を標準出力に表示して終了コード0で終わり、失敗があれば内容を標準エラー出力に出して終了コード1で終わります。
+ *   mvn test でも bench モジュールから実行されます。
+ */
+public class SelfCheck {
+    private static int checks;    // 実行したチェックの数
+    private static int failures;  // 失敗したチェックの数
+
+    public static void main(String[] args) {
+        checkScorer();
+        checkActionLog();
+        checkWarmStart();
+        checkLowerBound();
+        checkCandidateIndex();
+        checkAnnealer();
+        checkPortfolio();
+        checkTripOrder();
+        checkStaging();
+        checkPrefixCache();
+        checkWorkspace();
+        checkServer();
+        checkLargeGrid();
+        checkHugeGrid();
+        checkBeam();
+        System.out.println("checks=" + checks + " failures=" + failures);
+        if (failures > 0) System.exit(1);
+    }
+
+    /**
+     * Scorerを、手で得点を計算した2×2のケースと、Solverの出力で確かめます。
+     * 2×2のケースの箱は (0,1), (1,0), (1,1) の3つです。
+     */
+    static void checkScorer() {
+        // 重さは (0,1)=5, (1,0)=1, (1,1)=2。(1,1)の箱の耐久力だけが異なります。
+        Instance light = grid2(6);
+        Instance fragile = grid2(5);
+
+        // 1箱ずつ運ぶ正しい出力。操作は 3 + 3 + 5 = 11回で、得点は 2² + 2·2³ - 11 = 9 です。
+        String single = "R1L" + "D1U" + "DR1LU";
+        Scorer.Result r = Scorer.score(light, single);
+        expect("single: operations", 11, r.operations);
+        expect("single: moves", 8, r.moves);
+        expect("single: picks", 3, r.picks);
+        expect("single: delivered", 3, r.delivered);
+        expect("single: valid", 1, r.isValid() ? 1 : 0);
+        expect("single: score", 9, r.score);
+        // 区切りの改行や空白は読み飛ばし、ActionLogから再生しても同じ結果になります。
+        expect("single: separators", 9, Scorer.score(light, "R\n1\nL\nD 1 U\r\nD R 1 L U\n").score);
+        expect("single: action log", 9, Scorer.score(light, ActionLog.decode(single)).score);
+
+        // (1,1)の箱の上に重さ5の箱を載せて1マス動くと、(1,1)の箱は5のダメージを受けます。
+        // 耐久力6なら残り1で無事、耐久力5なら残り0で潰れます（0以下で潰れる規則の境界）。
+        String stacked = "DR1U1L" + "D1U";
+        r = Scorer.score(light, stacked);
+        expect("stacked: crushed", 0, r.crushed);
+        expect("stacked: score", 4 + 16 - 9, r.score);
+        r = Scorer.score(fragile, stacked);
+        expect("crush: crushed", 1, r.crushed);
+        expect("crush: delivered", 2, r.delivered); // 潰れた箱は運び出した数に入りません。
+        expect("crush: valid", 0, r.isValid() ? 1 : 0);
+        expect("crush: score", 2, r.score);         // 失敗したときの得点は運び出せた箱の数です。
+
+        // グリッドの外へ出る移動は不正な操作として数え、位置は変わりません（操作回数には含めます）。
+        r = Scorer.score(light, "U" + single);
+        expect("out of range: invalid", 1, r.invalid);
+        expect("out of range: operations", 12, r.operations);
+        expect("out of range: delivered", 3, r.delivered);
+        expect("out of range: valid", 0, r.isValid() ? 1 : 0);
+
+        // 箱のないマスでの持ち上げと、箱のあるマスへの置く操作も不正です。
+        r = Scorer.score(light, "1" + "R1D2");
+        expect("empty pick / occupied place: invalid", 2, r.invalid);
+        expect("empty pick / occupied place: places", 1, r.places);
+
+        // Solverの出力を採点すると、有効で、操作回数がSolverの数えた値と一致します。
+        Instance generated = InstanceGenerator.generate(1, InstanceGenerator.DEFAULT_N);
+        Solver solver = new Solver(generated.n, generated.weights, generated.durabilities);
+        solver.solve();
+        r = Scorer.score(generated, solver.actions);
+        expect("solver: valid", 1, r.isValid() ? 1 : 0);
+        expect("solver: operations", solver.operationCount(), r.operations);
+    }
+
+    /**
+     * ActionLogのチェックポイント（mark/truncate）と、出力形式での書き出し・読み込みの往復を確かめます。
+     * mark()の後に同じ操作を追加すると最後のランの回数が増えるだけなので、truncate()はランの数だけでなく
+     * 最後のランの回数も元に戻す必要があります。
+     */
+    static void checkActionLog() {
+        ActionLog log = new ActionLog();
+        log.append('R', 2);
+        log.append('1');
+        log.append('L', 2);
+        String before = log.toString();
+        long count = log.operationCount();
+        int runs = log.runCount();
+
+        long checkpoint = log.mark();
+        log.append('L', 3); // 最後のランに合流します。
+        expect("action log: merged run", runs, log.runCount());
+        log.append('U');
+        log.append('2');
+        log.truncate(checkpoint);
+        expect("action log: truncate operations", count, log.operationCount());
+        expect("action log: truncate runs", runs, log.runCount());
+        expect("action log: truncate text", 1, before.equals(log.toString()) ? 1 : 0);
+        // 巻き戻した後に追加しても、巻き戻す前の回数が残っていないことを確かめます。
+        log.append('L');
+        expect("action log: append after truncate", 3, log.countAt(log.runCount() - 1));
+        log.truncate(log.mark());
+        expect("action log: empty truncate", count + 1, log.operationCount());
+
+        // 書き出した出力を読み込むと、同じ操作コマンド列に戻ります。
+        Instance generated = InstanceGenerator.generate(2, InstanceGenerator.DEFAULT_N);
+        Solver solver = new Solver(generated.n, generated.weights, generated.durabilities);
+        solver.solve();
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        ActionLog decoded;
+        try {
+            solver.actions.writeTo(out);
+            decoded = ActionLog.decode(new java.io.ByteArrayInputStream(out.toByteArray()));
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        expect("action log: decode operations", solver.actions.operationCount(), decoded.operationCount());
+        expect("action log: decode runs", solver.actions.runCount(), decoded.runCount());
+        expect("action log: decode text", 1, solver.actions.toString().equals(decoded.toString()) ? 1 : 0);
+    }
+
+    /**
+     * WarmStartで前回の出力をトリップの一覧に戻し、それを初期解にして解き直した結果が前回より悪くならないことを確かめます。
+     * -DwarmStartDirと同じ経路（BatchRunner.solveCase）で、前回の出力と同じファイルに書き戻す場合を試します。
+     * また、操作コマンド列として読めないファイルや、運び残しのある途中までの出力は、理由を示して使わないことを確かめます。
+     */
+    static void checkWarmStart() {
+        Instance instance = InstanceGenerator.generate(3, InstanceGenerator.DEFAULT_N);
+        Solver solver = new Solver(instance.n, instance.weights, instance.durabilities);
+        solver.solve();
+        ActionLog incumbent = solver.actions;
+        // 置く操作を使わない出力は、同じトリップの一覧に戻ります（移動回数 + 拾う回数 = 操作回数）。
+        TripPlan plan = WarmStart.toPlan(new BoxTable(instance.n, instance.weights, instance.durabilities), instance.n, incumbent);
+        expect("warm start: plan operations", incumbent.operationCount(), plan.totalMoves() + solver.boxes.size);
+        Solver resolved = new Solver(instance.n, instance.weights, instance.durabilities, 100);
+        resolved.solve(plan);
+        expect("warm start: not worse", 1, resolved.operationCount() <= incumbent.operationCount() ? 1 : 0);
+        expect("warm start: valid", 1, Scorer.score(instance, resolved.actions).isValid() ? 1 : 0);
+
+        String previous = System.getProperty("warmStartDir");
+        try {
+            java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("selfcheck");
+            java.nio.file.Path input = dir.resolve("case.txt");
+            java.nio.file.Path output = dir.resolve("case.out");
+            try (java.io.PrintWriter out = new java.io.PrintWriter(java.nio.file.Files.newBufferedWriter(input))) {
+                InstanceGenerator.write(instance, out);
+            }
+            try (java.io.OutputStream out = java.nio.file.Files.newOutputStream(output)) {
+                incumbent.writeTo(out);
+            }
+            System.setProperty("warmStartDir", dir.toString());
+            BatchRunner.CaseResult result = BatchRunner.solveCase(input, 100, dir.toString());
+            expect("warm start dir: used incumbent", 0, result.warmStart.equals("none") ? 1 : 0);
+            expect("warm start dir: valid", 1, result.result.isValid() ? 1 : 0);
+            expect("warm start dir: not worse", 1, result.result.operations <= incumbent.operationCount() ? 1 : 0);
+            ActionLog written = WarmStart.load(instance, output);
+            expect("warm start dir: written file", result.result.operations, written == null ? -1 : written.operationCount());
+
+            // 操作でも区切りでもない文字があれば、その文字と位置を示して読み込みを拒否します。
+            java.nio.file.Files.write(output, "R\n1\nX\n".getBytes(java.nio.charset.StandardCharsets.US_ASCII));
+            String message = "";
+            try {
+                ActionLog.decode(new java.io.ByteArrayInputStream(java.nio.file.Files.readAllBytes(output)));
+            } catch (IllegalArgumentException e) {
+                message = e.getMessage();
+            }
+            expect("warm start: unknown character message", 1, message.contains("'X'") && message.contains("offset 4") ? 1 : 0);
+            expect("warm start: unknown character rejected", 1, WarmStart.load(instance, output) == null ? 1 : 0);
+            // 読めても、運び残しのある出力は正しい解ではないので使いません。
+            java.nio.file.Files.write(output, "R\n1\nL\n".getBytes(java.nio.charset.StandardCharsets.US_ASCII));
+            expect("warm start: incomplete rejected", 1, WarmStart.load(instance, output) == null ? 1 : 0);
+
+            for (java.nio.file.Path file : new java.nio.file.Path[] {input, output}) java.nio.file.Files.deleteIfExists(file);
+            java.nio.file.Files.delete(dir);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        } finally {
+            if (previous == null) System.clearProperty("warmStartDir");
+            else System.setProperty("warmStartDir", previous);
+        }
+    }
+
+    /**
+     * LowerBound.moves()が、生成したケースでSolverの計画の総移動回数を超えないことを確かめます。
+     * 下限と一致するはずの小さなケースとして、重さ・耐久力がどれも1の2×2のグリッドも調べます。
+     * どの箱も上に1箱載せて1マス動くだけで潰れるので1箱ずつ運ぶしかなく、総移動回数は 2 + 2 + 4 = 8 回です。
+     */
+    static void checkLowerBound() {
+        for (int n : new int[] {5, 10, InstanceGenerator.DEFAULT_N}) {
+            for (long seed = 1; seed <= 5; seed++) {
+                Instance instance = InstanceGenerator.generate(seed, n);
+                Solver solver = new Solver(instance.n, instance.weights, instance.durabilities);
+                solver.solve();
+                Scorer.Result r = Scorer.score(instance, solver.actions);
+                long bound = LowerBound.moves(new BoxTable(instance.n, instance.weights, instance.durabilities));
+                expect("lower bound: n=" + n + " seed=" + seed, 1, bound <= r.moves ? 1 : 0);
+                expect("lower bound: solver n=" + n + " seed=" + seed, bound, solver.lowerBound());
+            }
+        }
+        int[][] ones = {{0, 1}, {1, 1}};
+        Instance tight = new Instance(2, ones, ones);
+        Solver solver = new Solver(tight.n, tight.weights, tight.durabilities);
+        solver.solve();
+        expect("lower bound: tight", 8, LowerBound.moves(solver.boxes));
+        expect("lower bound: tight moves", 8, Scorer.score(tight, solver.actions).moves);
+    }
+
+    /**
+     * TripOrderOptimizerの部分集合DPの結果を、全ての拾う順序を試す総当たりと比べます。
+     * DPは状態ごとに(L, A)の組をLABELS個までしか保持しないので、組が溢れると最適な順序を取りこぼす近似になります。
+     * 確かめるトリップは、生成ケースの貪欲法のトリップ（8箱以下のもの）と、5×5のグリッドで耐久力を低めにした
+     * 8箱のトリップ（半分ほどはどの順序でも潰れます）で、どちらも順序をシャッフルしてから最適化します。
+     * 後者は耐久力の制約がきついので組が溢れやすく、LABELSを1にすると最適な順序を取りこぼすケースが含まれます。
+     * DPの距離が総当たりの最短距離と一致すること、並べ替えた順序の距離が返り値と一致することを確かめます。
+     */
+    static void checkTripOrder() {
+        final int maxBoxes = 8; // 総当たり（8! = 40320通り）で確かめるトリップの最大の箱の数
+        TripOrderCheck check = new TripOrderCheck();
+        for (long seed = 1; seed <= 10; seed++) {
+            Instance instance = InstanceGenerator.generate(seed, InstanceGenerator.DEFAULT_N);
+            Solver solver = new Solver(instance.n, instance.weights, instance.durabilities);
+            TripPlan plan = solver.buildGreedyPlan();
+            java.util.SplittableRandom random = new java.util.SplittableRandom(seed);
+            for (int t = 0; t < plan.count; t++) {
+                if (plan.len[t] < 2 || plan.len[t] > maxBoxes) continue;
+                check.run(solver.boxes, java.util.Arrays.copyOf(plan.trips[t], plan.len[t]), random);
+            }
+        }
+        for (long seed = 1; seed <= 800; seed++) {
+            java.util.SplittableRandom random = new java.util.SplittableRandom(seed);
+            int[][] weights = new int[5][5], durabilities = new int[5][5];
+            for (int i = 0; i < 5; i++) {
+                for (int j = 0; j < 5; j++) {
+                    if (i == 0 && j == 0) continue;
+                    weights[i][j] = 1 + random.nextInt(30);
+                    durabilities[i][j] = 1 + random.nextInt(1000);
+                }
+            }
+            BoxTable boxes = new BoxTable(5, weights, durabilities);
+            int[] seq = new int[maxBoxes];
+            for (int k = 0; k < maxBoxes; ) { // 異なる箱を無作為に選びます。
+                int id = random.nextInt(boxes.size);
+                boolean used = false;
+                for (int i = 0; i < k; i++) used |= seq[i] == id;
+                if (!used) seq[k++] = id;
+            }
+            check.run(boxes, seq, random);
+        }
+        expect("trip order: trips tested", 1, check.tested > 0 ? 1 : 0);
+        expect("trip order: infeasible trips tested", 1, check.infeasible > 0 ? 1 : 0);
+        expect("trip order: dp vs brute force mismatches", 0, check.mismatches);
+        expect("trip order: returned order", 0, check.badOrders);
+    }
+
+    /** checkTripOrder()で、1つのトリップについてDPと総当たりを比べ、結果を数えます。 */
+    private static final class TripOrderCheck {
+        int tested, infeasible, mismatches, badOrders;
+        private BoxTable boxes;
+        private TripOrderOptimizer optimizer;
+
+        void run(BoxTable boxes, int[] seq, java.util.SplittableRandom random) {
+            if (this.boxes != boxes) { // 作業用の表は箱のテーブルごとに作り直します。
+                this.boxes = boxes;
+                this.optimizer = new TripOrderOptimizer(boxes, TripOrderOptimizer.DEFAULT_EXACT_LIMIT);
+            }
+            int n = seq.length;
+            for (int i = n - 1; i > 0; i--) { // 元の順序が結果に影響しないように、順序をシャッフルします。
+                int j = random.nextInt(i + 1);
+                int x = seq[i];
+                seq[i] = seq[j];
+                seq[j] = x;
+            }
+            int[] original = seq.clone();
+            int expected = bruteForce(boxes, original.clone(), 0, n);
+            int actual = this.optimizer.optimize(seq, n);
+            this.tested++;
+            if (expected < 0) this.infeasible++;
+            if (actual != expected) {
+                this.mismatches++;
+                System.err.println("trip order: " + java.util.Arrays.toString(original) + " dp " + actual + " brute force " + expected);
+            }
+            // 返り値は並べ替えた後の順序の距離で、箱の集合は変わりません。
+            int[] sorted = seq.clone();
+            java.util.Arrays.sort(sorted);
+            java.util.Arrays.sort(original);
+            if (actual >= 0 && TripState.tourLength(boxes, seq, n) != actual || !java.util.Arrays.equals(sorted, original)) this.badOrders++;
+        }
+    }
+
+    /** seq[k..n-1]の全ての並べ方を試し、潰れる箱のない最短のトリップの距離を返します（なければ-1）。seqは元に戻します。 */
+    private static int bruteForce(BoxTable boxes, int[] seq, int k, int n) {
+        if (k == n) return TripState.tourLength(boxes, seq, n);
+        int best = -1;
+        for (int i = k; i < n; i++) {
+            int x = seq[k];
+            seq[k] = seq[i];
+            seq[i] = x;
+            int cost = bruteForce(boxes, seq, k + 1, n);
+            if (cost >= 0 && (best < 0 || cost < best)) best = cost;
+            seq[i] = seq[k];
+            seq[k] = x;
+        }
+        return best;
+    }
+
+    /**
+     * 中継（置く操作）を使うトリップを含む計画を手で作り、Solver.executePlan()の出力をScorerで確かめます。
+     * 3×3のグリッドで、箱IDは行優先に (0,1)=0, (0,2)=1, (1,0)=2, (1,1)=3, (1,2)=4, (2,0)=5, (2,1)=6, (2,2)=7 です。
+     * トリップ0で(0,1)の箱を運んでマスを空け、トリップ1では(0,2)の箱を拾った後、(0,1)にその箱を置いて(1,1)の箱を拾い、
+     * (0,1)へ戻って置いた箱を拾い直します。移動は 2 + 1 + 1 + 1 + 1 = 6回で、置く・拾い直す2操作と合わせて8です。
+     */
+    static void checkStaging() {
+        int[][] weights = {{0, 3, 4}, {2, 5, 1}, {6, 2, 3}};
+        int[][] durabilities = {{0, 100, 100}, {100, 100, 100}, {100, 100, 100}};
+        Instance instance = new Instance(3, weights, durabilities);
+        Solver solver = new Solver(instance.n, instance.weights, instance.durabilities);
+        TripPlan plan = new TripPlan(solver.boxes.size);
+        plan.set(plan.addTrip(), new int[] {0}, 1, 2);
+        plan.setStaged(plan.addTrip(), new int[] {1, 3}, new int[] {-1, 0}, 2, 8);
+        for (int id = 2; id < solver.boxes.size; id++) {
+            if (id == 3) continue;
+            plan.set(plan.addTrip(), new int[] {id}, 1, 2 * solver.boxes.distToOrigin(id));
+        }
+        expect("staging: staged box", 0, plan.stageAt(1, 1));
+        // 中継の探索が使うシミュレーションも、同じ移動と操作の回数を返します。
+        StagingOptimizer staging = new StagingOptimizer(instance.n, solver.boxes, plan);
+        expect("staging: simulated cost", 8, staging.simulate(plan.trips[1], new int[] {-1, 0}, 2, 1, 0));
+
+        solver.executePlan(plan);
+        Scorer.Result r = Scorer.score(instance, solver.actions);
+        expect("staging: valid", 1, r.isValid() ? 1 : 0);
+        expect("staging: places", 1, r.places);
+        expect("staging: picks", solver.boxes.size + 1, r.picks); // 置いた箱を拾い直す分だけ多くなります。
+        expect("staging: operations", solver.operationCount(), r.operations);
+        expect("staging: operations vs plan", plan.totalMoves() + solver.boxes.size, r.operations);
+    }
+
+    /**
+     * 中継の探索（StagingOptimizer）を、先頭部分のキャッシュ（PrefixStateCache）を使う場合と使わない場合で実行し、
+     * 移した箱・減らした操作回数・書き換えた後のトリップ（中継地点を含む）が全て一致することを確かめます。
+     */
+    static void checkPrefixCache() {
+        for (long seed = 1; seed <= 3; seed++) {
+            Instance instance = InstanceGenerator.generate(seed, InstanceGenerator.DEFAULT_N);
+            Solver solver = new Solver(instance.n, instance.weights, instance.durabilities);
+            TripPlan greedy = solver.buildGreedyPlan();
+            TripPlan cachedPlan = new TripPlan(greedy);
+            TripPlan plainPlan = new TripPlan(greedy);
+            StagingOptimizer cached = new StagingOptimizer(instance.n, solver.boxes, cachedPlan);
+            StagingOptimizer plain = new StagingOptimizer(instance.n, solver.boxes, plainPlan, 0);
+            cached.run(Long.MAX_VALUE);
+            plain.run(Long.MAX_VALUE);
+            expect("prefix cache: hits seed=" + seed, 1, cached.cache().hits > 0 ? 1 : 0);
+            expect("prefix cache: no hits without cache seed=" + seed, 0, plain.cache().hits);
+            expect("prefix cache: moved seed=" + seed, plain.moved, cached.moved);
+            expect("prefix cache: saved seed=" + seed, plain.saved, cached.saved);
+            expect("prefix cache: moves seed=" + seed, plainPlan.totalMoves(), cachedPlan.totalMoves());
+            int differing = 0;
+            for (int t = 0; t < plainPlan.count; t++) {
+                boolean same = plainPlan.len[t] == cachedPlan.len[t] && plainPlan.cost[t] == cachedPlan.cost[t];
+                for (int k = 0; same && k < plainPlan.len[t]; k++) {
+                    same = plainPlan.trips[t][k] == cachedPlan.trips[t][k] && plainPlan.stageAt(t, k) == cachedPlan.stageAt(t, k);
+                }
+                if (!same) differing++;
+            }
+            expect("prefix cache: trips seed=" + seed, 0, differing);
+        }
+    }
+
+    /**
+     * SolverWorkspaceを使い回して別々のインスタンスを順に解いても、作業領域を新しく確保した場合と同じ結果になることを確かめます。
+     * 拾う順序の最適化のDPの表は前のインスタンスで大きく確保したまま、次のインスタンスの箱に切り替えて使われます。
+     */
+    static void checkWorkspace() {
+        SolverWorkspace workspace = new SolverWorkspace();
+        for (int n : new int[] {InstanceGenerator.DEFAULT_N, 8, InstanceGenerator.DEFAULT_N}) {
+            Instance instance = InstanceGenerator.generate(n, n);
+            int[] moves = new int[2];
+            String[] text = new String[2];
+            for (int k = 0; k < 2; k++) {
+                Solver solver = new Solver(instance.n, instance.weights, instance.durabilities,
+                                           SolverConfig.withTimeLimit(0), k == 0 ? workspace : null);
+                TripPlan plan = solver.buildGreedyPlan();
+                solver.reorderTrips(plan, Long.MAX_VALUE);
+                solver.executePlan(plan);
+                moves[k] = (int) plan.totalMoves();
+                text[k] = solver.actions.toString();
+            }
+            expect("workspace: moves n=" + n, moves[1], moves[0]);
+            expect("workspace: actions n=" + n, 1, text[0].equals(text[1]) ? 1 : 0);
+        }
+    }
+
+    /**
+     * SolverServer.serve()に、2つのインスタンス・不正な要求・もう1つのインスタンスを連結したストリームを与えて確かめます。
+     * 応答は要求の順に「result seq=0」「result seq=1」と続き、不正な要求には「error seq=2 ...」を返して、
+     * その後の要求は読まずにストリームを閉じる（serve()が戻る）はずです。制限時間0なら出力は決定的なので、
+     * 新しいサーバー（作業領域も新しい）と、同じストリームを一度解いて作業領域を使い回しているサーバーの応答が、
+     * 待ち時間（latency_ms）を除いて一致することと、各応答の操作回数が作業領域なしのSolverと一致することも確かめます。
+     */
+    static void checkServer() {
+        Instance[] instances = {
+            InstanceGenerator.generate(1, InstanceGenerator.DEFAULT_N),
+            InstanceGenerator.generate(2, 12),
+            InstanceGenerator.generate(3, InstanceGenerator.DEFAULT_N),
+        };
+        java.io.StringWriter text = new java.io.StringWriter();
+        java.io.PrintWriter writer = new java.io.PrintWriter(text);
+        InstanceGenerator.write(instances[0], writer);
+        writer.println();
+        InstanceGenerator.write(instances[1], writer);
+        writer.println("x3");
+        InstanceGenerator.write(instances[2], writer);
+        writer.flush();
+        byte[] input = text.toString().getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+
+        SolverServer reused = new SolverServer(1, 0);
+        String fresh = serveOnce(new SolverServer(1, 0), input);
+        serveOnce(reused, input);
+        String again = serveOnce(reused, input);
+        if (fresh == null || again == null) {
+            expect("server: stream closes", 1, 0);
+            return;
+        }
+        java.util.List<String> headers = new java.util.ArrayList<>();
+        int[] actionLines = new int[3];
+        for (String line : fresh.split("\n")) {
+            if (line.startsWith("result ") || line.startsWith("error ")) headers.add(line);
+            else if (headers.size() <= actionLines.length) actionLines[headers.size() - 1]++;
+        }
+        expect("server: responses", 3, headers.size());
+        for (int seq = 0; seq < 2 && seq < headers.size(); seq++) {
+            Solver solver = new Solver(instances[seq].n, instances[seq].weights, instances[seq].durabilities, 0);
+            solver.solve();
+            expect("server: order seq=" + seq, 1, headers.get(seq).startsWith("result seq=" + seq + " ") ? 1 : 0);
+            expect("server: operations seq=" + seq, 1,
+                    headers.get(seq).contains(" operations=" + solver.operationCount() + " ") ? 1 : 0);
+            expect("server: action lines seq=" + seq, solver.operationCount(), actionLines[seq]);
+        }
+        expect("server: error line", 1, headers.size() == 3
+                && headers.get(2).startsWith("error seq=2 java.lang.NumberFormatException") ? 1 : 0);
+        expect("server: nothing after error", 0, headers.size() == 3 ? actionLines[2] : -1);
+        String latency = " latency_ms=[0-9]+";
+        expect("server: reused workspace", 1, fresh.replaceAll(latency, "").equals(again.replaceAll(latency, "")) ? 1 : 0);
+    }
+
+    /**
+     * serverにinputの要求を解かせ、応答を文字列で返します。serve()が30秒以内に戻らなければnullを返します。
+     */
+    static String serveOnce(SolverServer server, byte[] input) {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        Thread thread = new Thread(() -> {
+            try {
+                server.serve(new java.io.ByteArrayInputStream(input), out);
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        }, "selfcheck-serve");
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            thread.join(30_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) return null;
+        return new String(out.toByteArray(), java.nio.charset.StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 大きなグリッド（N=120、セクタに分けて計画する大きさ）で、時間制限つきの計画が有効な出力になることと、
+     * 持ち時間を使い切ったときの近い順の貪欲法が、箱を1箱ずつのトリップにばかりしないことを確かめます。
+     * 近い順の貪欲法は、計画を始めた時点で持ち時間が尽きている（deadlineNanos = 0）プランナーで全ての箱を計画させて調べます。
+     * 1箱ずつのトリップで運ぶ箱は設定の評価関数でも数%、近い順の貪欲法でも12%ほどなので、上限はその倍程度の25%にしています。
+     */
+    static void checkLargeGrid() {
+        Instance instance = InstanceGenerator.generate(1, 120);
+        Solver solver = new Solver(instance.n, instance.weights, instance.durabilities, 300);
+        solver.solve();
+        Scorer.Result r = Scorer.score(instance, solver.actions);
+        expect("large grid: valid", 1, r.isValid() ? 1 : 0);
+        expect("large grid: operations", solver.operationCount(), r.operations);
+
+        BoxTable boxes = new BoxTable(instance.n, instance.weights, instance.durabilities);
+        int[] all = new int[boxes.size];
+        for (int id = 0; id < all.length; id++) all[id] = id;
+        TripPlan plan = new TripPlan(boxes.size);
+        GreedyPlanner planner = new GreedyPlanner(boxes, all, 0, 0, instance.n, instance.n, SolverConfig.withTimeLimit(0), 1);
+        planner.deadlineNanos = 0;
+        planner.plan(plan);
+        int[] seen = new int[boxes.size];
+        int single = 0, broken = 0;
+        for (int t = 0; t < plan.count; t++) {
+            if (plan.len[t] == 1) single++;
+            if (TripState.tourLength(boxes, plan.trips[t], plan.len[t]) != plan.cost[t]) broken++;
+            for (int i = 0; i < plan.len[t]; i++) seen[plan.trips[t][i]]++;
+        }
+        int missing = 0;
+        for (int id = 0; id < boxes.size; id++) if (seen[id] != 1) missing++;
+        expect("large grid fast: every box once", 0, missing);
+        expect("large grid fast: feasible trips", 0, broken);
+        expect("large grid fast: single-box share <= 25%", 1, single * 4 <= boxes.size ? 1 : 0);
+        Solver replay = new Solver(instance.n, instance.weights, instance.durabilities);
+        replay.executePlan(plan);
+        expect("large grid fast: valid", 1, Scorer.score(instance, replay.actions).isValid() ? 1 : 0);
+    }
+
+    /**
+     * 貪欲法の1回の候補選び（GreedyPlanner.selectNext()）が、空間インデックスのブロックの輪の列挙と、評価値の下限・
+     * reachLimit()・homeLimit()による打ち切りを使っても、残っている全ての箱をevaluate()で比べる総当たりと同じ箱を選ぶことを
+     * 確かめます。総当たりと同じく、同じ評価値ならIDの小さい箱を選ぶはずですが、評価値が等しければ別の箱でも正解とします。
+     * 評価関数の3種類それぞれで、グリッド全体を担当するプランナーと、(0,0)から離れたセクタだけを担当するプランナー
+     * （出発点が領域の外にある場合）について、全ての箱を計画し終えるまでの各候補選びを比べます。揺らぎ（jitter）は
+     * 乱数を消費して総当たりと評価値がずれるので0にします。
+     */
+    static void checkCandidateIndex() {
+        for (long seed = 1; seed <= 3; seed++) {
+            Instance instance = InstanceGenerator.generate(seed, 30);
+            BoxTable boxes = new BoxTable(instance.n, instance.weights, instance.durabilities);
+            for (int mode = 0; mode < SolverConfig.EVAL_MODES; mode++) {
+                SolverConfig config = SolverConfig.withTimeLimit(0);
+                config.evalMode = mode;
+                config.jitter = 0;
+                // グリッド全体と、右下の20×20のセクタ（行・列10〜29）を担当させます。
+                for (int top : new int[] {0, 10}) {
+                    int size = instance.n - top;
+                    int count = 0;
+                    for (int id = 0; id < boxes.size; id++) if (boxes.r[id] >= top && boxes.c[id] >= top) count++;
+                    int[] ids = new int[count];
+                    count = 0;
+                    for (int id = 0; id < boxes.size; id++) if (boxes.r[id] >= top && boxes.c[id] >= top) ids[count++] = id;
+                    GreedyPlanner planner = new GreedyPlanner(boxes, ids, top, top, size, size, config, 1);
+                    TripState trip = planner.trip();
+                    boolean[] taken = new boolean[boxes.size];
+                    int mismatches = 0, steps = 0;
+                    for (int left = ids.length; left > 0; ) {
+                        trip.reset();
+                        while (true) {
+                            int chosen = planner.selectNext();
+                            // 総当たり：残っている全ての箱のうち、追加できるものを同じ評価関数で比べます。
+                            int best = -1;
+                            double bestEval = Double.MAX_VALUE;
+                            for (int id : ids) {
+                                if (taken[id] || !trip.canAppend(id)) continue;
+                                int dist = Math.abs(boxes.r[id] - trip.currentRow()) + Math.abs(boxes.c[id] - trip.currentCol());
+                                double eval = planner.evaluate(id, dist, trip.currentRow(), trip.currentCol());
+                                if (eval < bestEval || (eval == bestEval && id < best)) {
+                                    bestEval = eval;
+                                    best = id;
+                                }
+                            }
+                            steps++;
+                            if (chosen != best) {
+                                boolean tie = chosen >= 0 && best >= 0 && planner.evaluate(chosen,
+                                        Math.abs(boxes.r[chosen] - trip.currentRow()) + Math.abs(boxes.c[chosen] - trip.currentCol()),
+                                        trip.currentRow(), trip.currentCol()) == bestEval;
+                                if (!tie) mismatches++;
+                            }
+                            if (chosen < 0) break;
+                            planner.take(chosen);
+                            taken[chosen] = true;
+                            left--;
+                        }
+                        if (trip.depth() == 0) break; // 手ぶらでも選べなかった（不一致として数えてあります）。
+                    }
+                    String name = "candidate index: seed=" + seed + " mode=" + mode + " top=" + top;
+                    expect(name + " same choice as brute force", 0, mismatches);
+                    expect(name + " steps", 1, steps >= ids.length ? 1 : 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * TripAnnealerを、生成した小さなケースで確かめます。
+     * 焼きなまし法で改善した計画は、実行してScorerで再生すると有効で、操作回数が貪欲法の計画より多くなることはありません
+     * （run()は最後に最良の解へ戻すため）。また5種類の近傍それぞれについて、採用した近傍の差分（変更したトリップだけを
+     * 再計算したもの）が、全てのトリップをTripState.tourLength()で計算し直した総移動距離の変化と一致し、各トリップの
+     * cost[]も計算し直した値と一致することを確かめます。近傍は悪化も含めて受理されるように閾値を大きくして試します。
+     */
+    static void checkAnnealer() {
+        for (long seed = 1; seed <= 3; seed++) {
+            Instance instance = InstanceGenerator.generate(seed, InstanceGenerator.DEFAULT_N);
+            Solver greedy = new Solver(instance.n, instance.weights, instance.durabilities, 0);
+            TripPlan plan = greedy.buildGreedyPlan();
+            greedy.executePlan(plan);
+
+            BoxTable boxes = new BoxTable(instance.n, instance.weights, instance.durabilities);
+            TripPlan annealed = new TripPlan(plan);
+            TripAnnealer annealer = new TripAnnealer(boxes, annealed, seed);
+            annealer.run(System.nanoTime() + 100_000_000L);
+            Solver replay = new Solver(instance.n, instance.weights, instance.durabilities);
+            replay.executePlan(annealed);
+            Scorer.Result r = Scorer.score(instance, replay.actions);
+            expect("annealer: valid seed=" + seed, 1, r.isValid() ? 1 : 0);
+            expect("annealer: operations seed=" + seed, replay.operationCount(), r.operations);
+            expect("annealer: not worse than greedy seed=" + seed, 1,
+                    r.operations <= greedy.operationCount() ? 1 : 0);
+
+            // 貪欲法のトリップは箱を積めるだけ積んでいて連結するとほぼ潰れるので、連結は1箱ずつのトリップから試します。
+            TripPlan singles = new TripPlan(boxes.size);
+            for (int id = 0; id < boxes.size; id++) {
+                int t = singles.addTrip();
+                singles.append(t, id);
+                singles.cost[t] = 2 * boxes.distToOrigin(id);
+            }
+            for (int kind = 0; kind < TripAnnealer.MOVE_KINDS; kind++) {
+                TripPlan moved = new TripPlan(kind == TripAnnealer.MERGE ? singles : plan);
+                TripAnnealer stepper = new TripAnnealer(boxes, moved, seed * 31 + kind);
+                long total = recomputedMoves(boxes, moved);
+                int acceptedMoves = 0, wrongDelta = 0, wrongCost = 0;
+                for (int iter = 0; iter < 2000; iter++) {
+                    int delta = stepper.tryMove(kind, 50);
+                    if (delta == Integer.MAX_VALUE) continue;
+                    acceptedMoves++;
+                    long after = recomputedMoves(boxes, moved);
+                    if (after - total != delta) wrongDelta++;
+                    total = after;
+                    for (int t = 0; t < moved.count; t++) {
+                        if (moved.cost[t] != TripState.tourLength(boxes, moved.trips[t], moved.len[t])) wrongCost++;
+                    }
+                }
+                String name = "annealer: move " + kind + " seed=" + seed;
+                expect(name + " accepted some", 1, acceptedMoves > 0 ? 1 : 0);
+                expect(name + " delta matches recomputed total", 0, wrongDelta);
+                expect(name + " costs match recomputed", 0, wrongCost);
+                expect(name + " total matches plan", total, moved.totalMoves());
+            }
+        }
+    }
+
+    /** 全てのトリップの移動距離をTripState.tourLength()で計算し直して合計します（潰れるトリップがあれば-1を足します）。 */
+    static long recomputedMoves(BoxTable boxes, TripPlan plan) {
+        long total = 0;
+        for (int t = 0; t < plan.count; t++) total += TripState.tourLength(boxes, plan.trips[t], plan.len[t]);
+        return total;
+    }
+
+    /**
+     * Portfolioを、設定の異なる4つのSolverで確かめます。
+     * 制限時間0（貪欲法の計画をそのまま使う）なら各Solverの結果は設定とシードだけで決まるので、並列に実行したPortfolioの
+     * 操作回数は、同じ設定（SolverConfig.portfolioMember()）のSolverを1つずつ実行した中の最小値に一致するはずです。
+     * ワーカーがSolverの状態を共有していれば結果がずれるので、2回実行して同じ出力になることも確かめます。
+     * また制限時間つきで実行したときに、有効な出力を返し、全体が制限時間（と実行の後始末の分の余裕）のうちに終わることを確かめます。
+     */
+    static void checkPortfolio() {
+        int threads = 4;
+        for (long seed = 1; seed <= 2; seed++) {
+            Instance instance = InstanceGenerator.generate(seed, InstanceGenerator.DEFAULT_N);
+            Solver best = Portfolio.solve(instance.n, instance.weights, instance.durabilities, 0, threads);
+            Solver again = Portfolio.solve(instance.n, instance.weights, instance.durabilities, 0, threads);
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < threads; i++) {
+                Solver member = new Solver(instance.n, instance.weights, instance.durabilities, SolverConfig.portfolioMember(i, 0));
+                member.solve();
+                min = Math.min(min, member.operationCount());
+            }
+            Scorer.Result r = Scorer.score(instance, best.actions);
+            expect("portfolio: valid seed=" + seed, 1, r.isValid() ? 1 : 0);
+            expect("portfolio: operations seed=" + seed, best.operationCount(), r.operations);
+            expect("portfolio: min over members seed=" + seed, min, best.operationCount());
+            expect("portfolio: repeatable seed=" + seed, 1, again.actions.toString().equals(best.actions.toString()) ? 1 : 0);
+
+            long limitMillis = 300;
+            long start = System.nanoTime();
+            Solver timed = Portfolio.solve(instance.n, instance.weights, instance.durabilities,
+                                           start + limitMillis * 1_000_000L, threads);
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            expect("portfolio timed: valid seed=" + seed, 1, Scorer.score(instance, timed.actions).isValid() ? 1 : 0);
+            expect("portfolio timed: within limit seed=" + seed, 1, elapsedMillis <= limitMillis + 100 ? 1 : 0);
+        }
+    }
+
+    /**
+     * 最大のグリッド（N=1000、箱は約100万個）を既定の制限時間で解き、出力を書き出し終えるまでの時間と、
+     * 1箱ずつのトリップで運ぶ箱の割合を確かめます。出力は数GBになるので、バイト数だけを数えるストリームへ書き出します。
+     * N=1000の生成ケースでは、時間制限なしで計画しても約77%の箱が1箱ずつのトリップになる（重い箱が多く、遠くの箱を
+     * 載せると潰れる）ので、割合の上限は80%にしています。時間は、ここでの計画・実行・書き出しがJITの済んでいない1コアで
+     * 約3秒だったのに合わせて、制限時間の3倍を上限にしています。
+     */
+    static void checkHugeGrid() {
+        Instance instance = InstanceGenerator.generate(1, 1000);
+        long start = System.nanoTime();
+        Solver solver = new Solver(instance.n, instance.weights, instance.durabilities, Main.DEFAULT_TIME_LIMIT_MS);
+        solver.solve();
+        long[] written = new long[1];
+        try {
+            solver.actions.writeTo(new java.io.OutputStream() {
+                @Override public void write(int b) { written[0]++; }
+                @Override public void write(byte[] b, int off, int len) { written[0] += len; }
+            });
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        int boxes = solver.boxes.size;
+        expect("huge grid: bytes written", 2L * solver.operationCount(), written[0]);
+        expect("huge grid: operations", solver.plannedMoves() + boxes, solver.operationCount());
+        expect("huge grid: single-box share <= 80%", 1, solver.singleTrips() * 5L <= boxes * 4L ? 1 : 0);
+        expect("huge grid: solve and write <= 3x time limit", 1, millis <= 3 * Main.DEFAULT_TIME_LIMIT_MS ? 1 : 0);
+    }
+
+    /**
+     * ビームサーチ（beamWidth > 1）で作った計画を実行し、Scorerで再生した結果が有効で、
+     * 操作回数が計画の総移動回数と箱の数の和に一致することを確かめます。
+     * また、-DbeamWidthに並べ替えのキーに収まらない幅を指定しても、MAX_BEAM_WIDTHに抑えられることを確かめます。
+     */
+    static void checkBeam() {
+        for (int width : new int[] {2, 8}) {
+            Instance instance = InstanceGenerator.generate(width, InstanceGenerator.DEFAULT_N);
+            // 制限時間0ではビーム幅がすぐに1まで狭まるので、計画に十分な時間を与えます（計画と実行だけを行います）。
+            SolverConfig config = SolverConfig.withTimeLimit(10_000);
+            config.beamWidth = width;
+            Solver solver = new Solver(instance.n, instance.weights, instance.durabilities, config);
+            TripPlan plan = solver.buildGreedyPlan();
+            solver.executePlan(plan);
+            Scorer.Result r = Scorer.score(instance, solver.actions);
+            expect("beam: valid width=" + width, 1, r.isValid() ? 1 : 0);
+            expect("beam: moves width=" + width, plan.totalMoves(), r.moves);
+            expect("beam: operations width=" + width, plan.totalMoves() + solver.boxes.size, r.operations);
+        }
+
+        String previous = System.getProperty("beamWidth");
+        try {
+            System.setProperty("beamWidth", "4096");
+            expect("beam: width capped", SolverConfig.MAX_BEAM_WIDTH, SolverConfig.withTimeLimit(0).beamWidth);
+        } finally {
+            if (previous == null) System.clearProperty("beamWidth");
+            else System.setProperty("beamWidth", previous);
+        }
+        // キーの下位ビットに入る子の番号は、上限の幅でも溢れません。
+        expect("beam: children fit in key", 1,
+                (long) SolverConfig.MAX_BEAM_WIDTH * Math.max(SolverConfig.MAX_BEAM_WIDTH, SolverConfig.BEAM_EXPAND) < (1 << 20) ? 1 : 0);
+    }
+
+    /** 重さが (0,1)=5, (1,0)=1, (1,1)=2、耐久力が (0,1)=(1,0)=10, (1,1)=durability11 の2×2のインスタンスを作ります。 */
+    private static Instance grid2(int durability11) {
+        int[][] weights = {{0, 5}, {1, 2}};
+        int[][] durabilities = {{0, 10}, {10, durability11}};
+        return new Instance(2, weights, durabilities);
+    }
+
+    /** 値が期待どおりかを確かめ、違っていれば失敗として標準エラー出力に書き出します。 */
+    static void expect(String name, long expected, long actual) {
+        checks++;
+        if (expected != actual) {
+            failures++;
+            System.err.println("FAIL " + name + ": expected " + expected + " but was " + actual);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+import java.io.BufferedOutputStream; // 応答のバッファ付き書き込み
+import java.io.BufferedReader; // 要求の読み込み
+import java.io.ByteArrayOutputStream; // 応答を組み立てる再利用可能なバッファ
+import java.io.IOException; // 入出力処理における例外を扱うためのクラス
+import java.io.InputStream; // 要求の読み込み元
+import java.io.InputStreamReader; // バイトストリームを文字ストリームに変換するためのクラス
+import java.io.OutputStream; // 応答の書き出し先
+import java.net.InetAddress; // TCPで待ち受けるアドレス
+import java.net.InetSocketAddress; // TCPで待ち受けるアドレスとポート
+import java.net.StandardProtocolFamily; // Unixドメインソケットの指定
+import java.net.UnixDomainSocketAddress; // Unixドメインソケットのパス
+import java.nio.channels.Channels; // ソケットをストリームとして扱うためのユーティリティ
+import java.nio.channels.ServerSocketChannel; // 接続の待ち受け
+import java.nio.channels.SocketChannel; // 1つの接続
+import java.nio.charset.StandardCharsets; // 文字コードの指定
+import java.nio.file.Files; // ソケットファイルの削除
+import java.nio.file.LinkOption; // シンボリックリンクをたどらずに属性を読むための指定
+import java.nio.file.Path; // ソケットファイルのパス
+import java.nio.file.Paths; // 文字列からPathを作るためのユーティリティ
+import java.nio.file.attribute.BasicFileAttributes; // ソケットファイルかどうかの判定
+import java.util.Arrays; // 配列のユーティリティ
+import java.util.concurrent.ArrayBlockingQueue; // 応答バッファのプール
+import java.util.concurrent.BlockingQueue; // 要求の順に応答を書き出すための待ち行列
+import java.util.concurrent.CompletableFuture; // 解き終わった応答
+import java.util.concurrent.ExecutorService; // 要求を解くワーカー
+import java.util.concurrent.Executors; // ワーカーのスレッドプールの生成
+import java.util.concurrent.LinkedBlockingQueue; // 要求の順に応答を書き出すための待ち行列の実装
+
+/**
+ * 常駐して問題インスタンスを次々に解くサーバー。
+ * インスタンスごとにJVMを起動すると、起動とJITのウォームアップに解くのと同じくらいの時間がかかるので、
+ * 1つのJVMで多くのインスタンスを解き、コンパイル済みのコードを使い回します。
+ *
+ * 要求は問題の入力フォーマットのインスタンスをそのまま連結したもの（間の空行は読み飛ばします）で、
+ * 標準入力・TCP・Unixドメインソケットのいずれかから受け取ります。1つのストリームの要求はワーカーで並列に解き、
+ * 応答は要求の順に、1行目に「result seq=<番号> operations=<操作回数> score=<得点> latency_ms=<受け取ってから解き終わるまで>」、
+ * 続くoperations行に操作コマンドを書きます（不正な要求には「error seq=<番号> <理由>」を返してそのストリームを閉じます）。
+ * NがMAX_Nを超える要求は、グリッドを確保する前に不正な要求として扱います。
+ * ワーカーは解くための作業領域（SolverWorkspace）をスレッドごとに1つ持ち、要求をまたいで使い回します。
+ * ストリームの終わりに、解けた要求の待ち時間の分布（p50, p99）とエラーを返した要求の数を標準エラー出力に表示します。
+ *
+ * 使い方:
+ *   java SolverServer                      標準入力の要求を解き、標準出力に応答を書きます
+ *   java SolverServer --tcp <ポート>        127.0.0.1の指定したポートで接続を待ち受けます
+ *   java SolverServer --unix <ソケットのパス> Unixドメインソケットで接続を待ち受けます（パスに前回のソケットが残っていれば削除し、
+ *                                           ソケット以外のファイルがあれば起動しません）
+ *   -DtimeLimitMs=... 1インスタンスあたりの改善フェーズの制限時間（既定はMain.DEFAULT_TIME_LIMIT_MS）
+ *   -Dthreads=...     同時に解くインスタンスの数（既定は利用可能なプロセッサ数）
+ *   -Dwarmup=...      起動時にJITを温めるために解く、生成したインスタンスの数（既定は5）
+ */
+public class SolverServer {
+    static final int DEFAULT_WARMUP = 5;       // 起動時に解くインスタンスの数の既定値
+    static final long WARMUP_TIME_LIMIT_MS = 50; // ウォームアップで解くときの改善フェーズの制限時間
+    static final int MAX_N = 1000;             // 受け付けるグリッドのサイズの上限
+
+    private final ExecutorService workers;
+    private final long timeLimitMs;
+    private final BlockingQueue<ByteArrayOutputStream> buffers; // 応答を組み立てるバッファのプール（容量を保ったまま使い回します）
+    // ワーカーのスレッドごとの作業領域。応答を組み立て終わるまで操作コマンドの列を使うので、スレッド間では共有しません。
+    private final ThreadLocal<SolverWorkspace> workspaces = ThreadLocal.withInitial(SolverWorkspace::new);
+
+    SolverServer(int threads, long timeLimitMs) {
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "solver-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timeLimitMs = timeLimitMs;
+        this.buffers = new ArrayBlockingQueue<>(threads * 4);
+        for (int i = 0; i < threads * 4; i++) this.buffers.add(new ByteArrayOutputStream(1 << 16));
+    }
+
+    /** 1つの要求の応答。 */
+    private static final class Response {
+        final ByteArrayOutputStream bytes; // 書き出す応答（書き出した後はプールに戻します）
+        final long latencyNanos;           // 要求を受け取ってから解き終わるまでの時間
+        final boolean error;               // エラーの応答かどうか（待ち時間の分布には含めません）
+
+        Response(ByteArrayOutputStream bytes, long latencyNanos, boolean error) {
+            this.bytes = bytes;
+            this.latencyNanos = latencyNanos;
+            this.error = error;
+        }
+    }
+
+    /** 書き出した応答の待ち時間を記録する可変長の配列。書き出し用のスレッドだけが追加します。 */
+    private static final class LatencyLog {
+        private long[] values = new long[64];
+        private int size;
+        int errors; // エラーを返した要求の数（待ち時間は記録しません）
+
+        void add(long nanos) {
+            if (this.size == this.values.length) this.values = Arrays.copyOf(this.values, this.size * 2);
+            this.values[this.size++] = nanos;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(this.values, this.size);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        long timeLimitMs = Long.getLong("timeLimitMs", Main.DEFAULT_TIME_LIMIT_MS);
+        int threads = Math.max(1, Integer.getInteger("threads", Runtime.getRuntime().availableProcessors()));
+        SolverServer server = new SolverServer(threads, timeLimitMs);
+        server.warmUp(Integer.getInteger("warmup", DEFAULT_WARMUP));
+        if (args.length == 0) {
+            server.serve(System.in, System.out);
+        } else if (args.length == 2 && args[0].equals("--tcp")) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[1])));
+            server.accept(channel);
+        } else if (args.length == 2 && args[0].equals("--unix")) {
+            Path socket = Paths.get(args[1]);
+            if (Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) {
+                // 前回の実行が残したソケットだけを削除し、通常のファイルなどを誤って消さないようにします。
+                if (!isSocket(socket)) {
+                    System.err.println(socket + " exists and is not a socket; refusing to replace it");
+                    System.exit(2);
+                }
+                Files.delete(socket);
+            }
+            ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.bind(UnixDomainSocketAddress.of(socket));
+            server.accept(channel);
+        } else {
+            System.err.println("Usage: java SolverServer [--tcp <port> | --unix <socket-path>]");
+            System.exit(2);
+        }
+    }
+
+    /** pathがUnixドメインソケットのファイルかどうかを返します（シンボリックリンクはたどりません）。 */
+    private static boolean isSocket(Path path) throws IOException {
+        try {
+            int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & 0170000) == 0140000; // ファイルの種類がS_IFSOCK
+        } catch (UnsupportedOperationException e) {
+            // unix属性が読めないファイルシステムでは、通常のファイル・ディレクトリ・リンク以外をソケットとみなします。
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+        }
+    }
+
+    /**
+     * 生成したインスタンスを解いて、ホットループをJITにコンパイルさせておきます。
+     * @param count 解くインスタンスの数
+     */
+    void warmUp(int count) {
+        for (int seed = 0; seed < count; seed++) {
+            Instance instance = InstanceGenerator.generate(seed, InstanceGenerator.DEFAULT_N);
+            Solver solver = new Solver(instance.n, instance.weights, instance.durabilities,
+                                       SolverConfig.withTimeLimit(WARMUP_TIME_LIMIT_MS), this.workspaces.get());
+            solver.solve();
+            Scorer.score(instance, solver.actions);
+        }
+    }
+
+    /** 接続を待ち受け、接続ごとにスレッドを立てて要求を処理します（終了はプロセスごと止めてください）。 */
+    void accept(ServerSocketChannel channel) throws IOException {
+        System.err.println("listening on " + channel.getLocalAddress());
+        while (true) {
+            SocketChannel connection = channel.accept();
+            Thread thread = new Thread(() -> {
+                try (SocketChannel c = connection) {
+                    serve(Channels.newInputStream(c), Channels.newOutputStream(c));
+                } catch (IOException e) {
+                    System.err.println("connection closed: " + e);
+                }
+            }, "solver-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * 1つのストリームの要求を最後まで読み、ワーカーで並列に解いて、要求の順に応答を書き出します。
+     * 読み込みはこのスレッドで、書き出しは別のスレッドで行うので、前の要求を解いている間にも次の要求を受け取れます。
+     */
+    void serve(InputStream in, OutputStream rawOut) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII), 1 << 16);
+        OutputStream out = new BufferedOutputStream(rawOut, 1 << 16);
+        BlockingQueue<CompletableFuture<Response>> pending = new LinkedBlockingQueue<>();
+        CompletableFuture<Response> end = new CompletableFuture<>(); // ストリームの終わりを表す印
+        LatencyLog latencies = new LatencyLog();
+        Thread writer = new Thread(() -> {
+            try {
+                while (true) {
+                    CompletableFuture<Response> future = pending.take();
+                    if (future == end) break;
+                    Response response;
+                    try {
+                        response = future.join();
+                    } catch (java.util.concurrent.CompletionException e) {
+                        // 応答を作れずに終わった要求も、後の応答を止めないようにエラーとして返します。
+                        response = new Response(text("error " + e.getCause() + "\n"), 0, true);
+                    }
+                    response.bytes.writeTo(out);
+                    release(response.bytes);
+                    if (response.error) {
+                        latencies.errors++;
+                    } else {
+                        latencies.add(response.latencyNanos);
+                    }
+                    // 次の応答がまだできていなければ、ここまでの応答を相手に届けてから待ちます。
+                    CompletableFuture<Response> next = pending.peek();
+                    if (next == null || next == end || !next.isDone()) out.flush();
+                }
+                out.flush();
+            } catch (IOException | InterruptedException e) {
+                System.err.println("writer stopped: " + e);
+            }
+        }, "solver-writer");
+        writer.start();
+
+        try {
+            for (int seq = 0; ; seq++) {
+                String first = nextNonEmptyLine(br);
+                if (first == null) break;
+                long received = System.nanoTime();
+                Instance instance;
+                try {
+                    int n = Integer.parseInt(first.trim());
+                    if (n < 1 || n > MAX_N) throw new IllegalArgumentException("N=" + n + " is out of range [1, " + MAX_N + "]");
+                    instance = Instance.read(n, br);
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    // 要求の区切りがわからなくなるので、エラーを返してこのストリームを閉じます。
+                    pending.add(CompletableFuture.completedFuture(
+                            new Response(text("error seq=" + seq + " " + e + "\n"), System.nanoTime() - received, true)));
+                    break;
+                }
+                int requestSeq = seq;
+                pending.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return solve(requestSeq, instance, received);
+                    } catch (RuntimeException | OutOfMemoryError e) {
+                        return new Response(text("error seq=" + requestSeq + " " + e + "\n"), System.nanoTime() - received, true);
+                    }
+                }, this.workers));
+            }
+        } finally {
+            // 読み込みが例外で止まっても、書き出し用のスレッドが終わりの印を待ち続けないようにします。
+            pending.add(end);
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        printLatencies(latencies.toArray(), latencies.errors);
+    }
+
+    /** 1つの要求を、ワーカーのスレッドの作業領域を使い回すSolverで解き、応答をプールのバッファに組み立てます。 */
+    private Response solve(int seq, Instance instance, long receivedNanos) {
+        Solver solver = new Solver(instance.n, instance.weights, instance.durabilities,
+                                   SolverConfig.withTimeLimit(this.timeLimitMs), this.workspaces.get());
+        solver.solve();
+        Scorer.Result result = Scorer.score(instance, solver.actions);
+        long latency = System.nanoTime() - receivedNanos;
+        ByteArrayOutputStream bytes = acquire();
+        try {
+            String header = "result seq=" + seq + " operations=" + result.operations + " score=" + result.score
+                    + " latency_ms=" + latency / 1_000_000L + "\n";
+            bytes.write(header.getBytes(StandardCharsets.US_ASCII));
+            solver.actions.writeTo(bytes);
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException(e); // ByteArrayOutputStreamへの書き込みでは発生しません。
+        }
+        return new Response(bytes, latency, false);
+    }
+
+    /** プールから空のバッファを取り出します。プールが空なら新しく作ります。 */
+    private ByteArrayOutputStream acquire() {
+        ByteArrayOutputStream bytes = this.buffers.poll();
+        return bytes != null ? bytes : new ByteArrayOutputStream(1 << 16);
+    }
+
+    /** 書き出し終わったバッファを空にしてプールに戻します（プールが満杯なら捨てます）。 */
+    private void release(ByteArrayOutputStream bytes) {
+        bytes.reset();
+        this.buffers.offer(bytes);
+    }
+
+    /** 文字列を書き込んだバッファを返します。 */
+    private ByteArrayOutputStream text(String s) {
+        ByteArrayOutputStream bytes = acquire();
+        byte[] b = s.getBytes(StandardCharsets.US_ASCII);
+        bytes.write(b, 0, b.length);
+        return bytes;
+    }
+
+    /** 空行を読み飛ばし、最初の空でない行を返します。ストリームの終わりならnullを返します。 */
+    private static String nextNonEmptyLine(BufferedReader br) throws IOException {
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (!line.trim().isEmpty()) return line;
+        }
+        return null;
+    }
+
+    /** 解けた要求の待ち時間の分布と、エラーを返した要求の数を標準エラー出力に表示します。 */
+    private static void printLatencies(long[] latencies, int errors) {
+        if (latencies.length == 0) {
+            if (errors > 0) System.err.printf("requests=0 errors=%d%n", errors);
+            return;
+        }
+        Arrays.sort(latencies);
+        System.err.printf("requests=%d errors=%d latency_ms: p50=%.1f p99=%.1f max=%.1f%n", latencies.length, errors,
+                BatchRunner.percentile(latencies, 50) / 1e6, BatchRunner.percentile(latencies, 99) / 1e6,
+                latencies[latencies.length - 1] / 1e6);
+    }
+}
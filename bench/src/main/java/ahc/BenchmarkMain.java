@@ -0,0 +1,37 @@
+package ahc;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * benchmarks.jar のエントリポイント。
+ * JMH標準のコマンドライン引数をそのまま受け付けたうえで、既定でGCプロファイラ（アロケーション量の計測）を有効にし、
+ * 結果をJSON（jmh-result.json）に書き出します。コミット間で結果を比較して性能の退行を追跡するためのものです。
+ * 例: java -jar bench/target/benchmarks.jar Feasibility -rff feasibility.json
+ * 一覧や使い方の表示（-l, -lp, -lprof, -lrf, -h）は実行せずにJMH標準のエントリポイントへそのまま渡します。
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListWithParams()
+                || cmd.shouldListProfilers() || cmd.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmd);
+        if (cmd.getProfilers().isEmpty()) {
+            builder.addProfiler(GCProfiler.class);
+        }
+        if (!cmd.getResultFormat().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON);
+        }
+        if (!cmd.getResult().hasValue()) {
+            builder.result("jmh-result.json");
+        }
+        new Runner(builder.build()).run();
+    }
+}
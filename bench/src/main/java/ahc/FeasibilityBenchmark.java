@@ -0,0 +1,69 @@
+package ahc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 1回の実行可能性判定のコストを、手に持っている箱の数（スタックの深さ）ごとに測るベンチマーク。
+ * canAppend() は貪欲法が候補ごとに呼ぶ増分判定、tourLength() は焼きなまし法が近傍ごとに呼ぶトリップ全体の判定です。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeasibilityBenchmark {
+    @Param({"1", "4", "8", "16"})
+    int depth;
+
+    @Param({"20"})
+    int n;
+
+    BoxTable boxes;
+    TripState trip;
+    int[] seq;        // スタックの箱に候補を1つ加えたトリップ（拾う順）
+    int candidate;    // 次に拾う候補の箱
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Instance instance = InstanceGenerator.generate(1, this.n);
+        this.boxes = new BoxTable(instance.n, instance.weights, instance.durabilities);
+        // 指定した深さまで確実に積めるように、スタックに載せる箱の耐久力だけを十分大きくします。
+        // 判定はスタック全体をたどるので、測定される計算量は変わりません。
+        this.seq = new int[this.depth + 1];
+        for (int k = 0; k < this.depth; k++) {
+            int id = k * (this.boxes.size / (this.depth + 1));
+            this.boxes.dCurrent[id] = Long.MAX_VALUE / 4;
+            this.seq[k] = id;
+        }
+        this.candidate = this.boxes.size - 1;
+        this.seq[this.depth] = this.candidate;
+        this.trip = new TripState(this.boxes, this.boxes.size);
+        for (int k = 0; k < this.depth; k++) {
+            this.trip.commit(this.seq[k]);
+        }
+    }
+
+    @Benchmark
+    public boolean canAppend() {
+        return this.trip.canAppend(this.candidate);
+    }
+
+    @Benchmark
+    public int tourLength() {
+        return TripState.tourLength(this.boxes, this.seq, this.seq.length);
+    }
+}
@@ -0,0 +1,49 @@
+package ahc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 固定シードのインスタンスに対して、Solver.solve() 全体（貪欲法による計画と操作コマンドの記録）を測るベンチマーク。
+ * 焼きなまし法は制限時間いっぱいまで動くので、ここでは制限時間0（貪欲法のみ）で測ります。
+ * 戻り値の操作回数は、最適化で計算が消されないようにするためと、結果が変わっていないかの目安を兼ねます。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SolveBenchmark {
+    @Param({"20", "40"})
+    int n;
+
+    @Param({"1"})
+    long seed;
+
+    Instance instance;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.instance = InstanceGenerator.generate(this.seed, this.n);
+    }
+
+    @Benchmark
+    public long greedySolve() {
+        Solver solver = new Solver(this.instance.n, this.instance.weights, this.instance.durabilities);
+        solver.solve();
+        return solver.operationCount();
+    }
+}
@@ -0,0 +1,62 @@
+package ahc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 1つのトリップの拾う順序を最適化し直すコスト（TripOrderOptimizer.optimize()）を、トリップの箱の数ごとに測るベンチマーク。
+ * 貪欲法で作ったトリップのうち、指定した数以上の箱を含む最初のトリップの先頭size個を使います
+ * （先に拾う箱だけを残しても上に載る箱が減るだけなので、元のトリップが実行可能なら先頭部分も実行可能です）。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TripOrderBenchmark {
+    @Param({"6", "8", "10"})
+    int size;
+
+    @Param({"20"})
+    int n;
+
+    BoxTable boxes;
+    TripOrderOptimizer optimizer;
+    int[] trip;  // 貪欲法が作った順序のトリップ
+    int[] work;  // optimize()が並べ替える作業用のコピー
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Instance instance = InstanceGenerator.generate(1, this.n);
+        Solver solver = new Solver(instance.n, instance.weights, instance.durabilities);
+        TripPlan plan = solver.buildGreedyPlan();
+        this.boxes = solver.boxes;
+        int chosen = -1;
+        for (int t = 0; t < plan.count && chosen < 0; t++) {
+            if (plan.len[t] >= this.size) chosen = t;
+        }
+        if (chosen < 0) throw new IllegalStateException("no trip with " + this.size + " boxes");
+        this.trip = java.util.Arrays.copyOf(plan.trips[chosen], this.size);
+        this.work = new int[this.size];
+        this.optimizer = new TripOrderOptimizer(this.boxes, TripOrderOptimizer.DEFAULT_EXACT_LIMIT);
+    }
+
+    @Benchmark
+    public int optimize() {
+        System.arraycopy(this.trip, 0, this.work, 0, this.size);
+        return this.optimizer.optimize(this.work, this.size);
+    }
+}
@@ -0,0 +1,22 @@
+#!/bin/sh
+# 起動を速くするためのAppCDS（クラスデータ共有）アーカイブを作ります。
+# 直下の *.java をコンパイルしてjarにまとめ（CDSのクラスパスにはディレクトリを使えません）、
+# 生成したケースを Main と SolverServer でそれぞれ1回解いたときに読み込んだクラスを、
+# 動的アーカイブ（-XX:ArchiveClassesAtExit、JDK 13以降）に保存します。
+#
+# 使い方: scripts/cds.sh [出力ディレクトリ（既定は build/cds）]
+# 実行（クラスパスはアーカイブを作ったときと同じにしてください）:
+#   java -XX:SharedArchiveFile=build/cds/main.jsa -cp build/cds/app.jar Main < in.txt
+#   java -XX:SharedArchiveFile=build/cds/server.jsa -cp build/cds/app.jar SolverServer < requests.txt
+set -eu
+cd "$(dirname "$0")/.."
+OUT=${1:-build/cds}
+mkdir -p "$OUT/classes"
+javac -encoding UTF-8 -d "$OUT/classes" *.java
+jar cf "$OUT/app.jar" -C "$OUT/classes" .
+java -cp "$OUT/classes" InstanceGenerator "$OUT/train" 1 0
+java -XX:ArchiveClassesAtExit="$OUT/main.jsa" -DtimeLimitMs=100 -cp "$OUT/app.jar" Main \
+    < "$OUT/train/0000.txt" > /dev/null
+java -XX:ArchiveClassesAtExit="$OUT/server.jsa" -DtimeLimitMs=100 -Dwarmup=0 -cp "$OUT/app.jar" SolverServer \
+    < "$OUT/train/0000.txt" > /dev/null 2>&1
+echo "wrote $OUT/main.jsa and $OUT/server.jsa"